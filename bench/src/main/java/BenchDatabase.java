@@ -0,0 +1,145 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+ * The database for benchmarks and load tests.
+ *
+ * If MYSQL_URL is set (system property or environment) the app's own MySQL is used as is
+ * and must already have the schema from sql/. Otherwise DatabaseConnector is pointed at an
+ * in-memory H2 database in MySQL mode holding the tables the API reads and writes: the
+ * end state of the sql/ migrations without what H2 cannot express (partitioning,
+ * charsets). Either way the connections come from DatabaseConnector's pool, so use() must
+ * run before anything else borrows one.
+ */
+public final class BenchDatabase {
+
+    static final String H2_URL = "jdbc:h2:mem:atm_db;MODE=MySQL;DATABASE_TO_LOWER=TRUE;"
+            + "CASE_INSENSITIVE_IDENTIFIERS=TRUE;DB_CLOSE_DELAY=-1";
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS atm_locations ("
+            + "atm_id INT AUTO_INCREMENT PRIMARY KEY, location_hash BINARY(32) NOT NULL, "
+            + "atm_name VARCHAR(255) NOT NULL, atm_address VARCHAR(500) NOT NULL, pincode VARCHAR(10) NOT NULL, "
+            + "first_seen TIMESTAMP DEFAULT CURRENT_TIMESTAMP, last_seen TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+            + "latitude DOUBLE NULL, longitude DOUBLE NULL, "
+            + "CONSTRAINT uq_atm_locations_pincode UNIQUE (pincode, location_hash))",
+        "CREATE INDEX IF NOT EXISTS idx_atm_locations_hash ON atm_locations (location_hash)",
+        "CREATE INDEX IF NOT EXISTS idx_atm_locations_last_seen ON atm_locations (last_seen)",
+        "CREATE TABLE IF NOT EXISTS atm_pincode_refresh ("
+            + "pincode VARCHAR(10) NOT NULL PRIMARY KEY, refreshed_at TIMESTAMP NOT NULL, atm_count INT NOT NULL DEFAULT 0)",
+        "CREATE TABLE IF NOT EXISTS atm_latest_status ("
+            + "location_hash BINARY(32) NOT NULL PRIMARY KEY, atm_name VARCHAR(255) NOT NULL, atm_address VARCHAR(500) NOT NULL, "
+            + "cash_status TINYINT NOT NULL DEFAULT 0, deposit_status TINYINT NOT NULL DEFAULT 0, "
+            + "passbook_status TINYINT NOT NULL DEFAULT 0, report_id BIGINT NOT NULL, report_timestamp TIMESTAMP NOT NULL, "
+            + "confirmations INT NOT NULL DEFAULT 1)",
+        "CREATE INDEX IF NOT EXISTS idx_latest_report_timestamp ON atm_latest_status (report_timestamp)",
+        "CREATE INDEX IF NOT EXISTS idx_latest_cash_status ON atm_latest_status (cash_status)",
+        "CREATE TABLE IF NOT EXISTS ATM_reports ("
+            + "report_id BIGINT AUTO_INCREMENT, atm_name VARCHAR(255) NOT NULL, atm_address VARCHAR(500) NOT NULL, "
+            + "cash_status TINYINT NOT NULL DEFAULT 0, deposit_status TINYINT NOT NULL DEFAULT 0, "
+            + "passbook_status TINYINT NOT NULL DEFAULT 0, report_timestamp TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, "
+            + "confirmations INT NOT NULL DEFAULT 1, last_confirmed_at TIMESTAMP NULL, "
+            + "PRIMARY KEY (report_id, report_timestamp))",
+    };
+
+    // Statuses cycled through by seed(); WORKING and AVAILABLE count as having cash.
+    private static final AtmStatus[] CASH = {AtmStatus.WORKING, AtmStatus.NOT_WORKING, AtmStatus.AVAILABLE, AtmStatus.OUT_OF_CASH};
+
+    private static boolean ready;
+
+    private BenchDatabase() {}
+
+    /**
+     * Make DatabaseConnector use the bench database, creating the H2 schema on first use.
+     * Returns a description of the database for reports.
+     */
+    public static synchronized String use() {
+        if (!ready) {
+            if (AppConfig.get("MYSQL_URL") == null) {
+                System.setProperty("MYSQL_URL", H2_URL);
+                System.setProperty("MYSQL_DRIVER", "org.h2.Driver");
+                try (Connection conn = connection(); Statement st = conn.createStatement()) {
+                    for (String ddl : SCHEMA) st.execute(ddl);
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Cannot create the H2 bench schema: " + e.getMessage(), e);
+                }
+            }
+            ready = true;
+        }
+        String url = AppConfig.get("MYSQL_URL");
+        return url.startsWith("jdbc:h2:") ? "h2 (MySQL mode, in-memory)" : url;
+    }
+
+    /**
+     * Replace pincode's catalog with atms ATMs and give each a latest report; every other
+     * one has cash. The pincode is marked as refreshed now, so the API serves it from the
+     * catalog without calling Gemini.
+     */
+    public static void seed(String pincode, int atms) {
+        use();
+        try (Connection conn = connection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM atm_latest_status WHERE location_hash IN "
+                    + "(SELECT location_hash FROM atm_locations WHERE pincode = ?)")) {
+                ps.setString(1, pincode);
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM atm_locations WHERE pincode = ?")) {
+                ps.setString(1, pincode);
+                ps.executeUpdate();
+            }
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            try (PreparedStatement loc = conn.prepareStatement("INSERT INTO atm_locations "
+                    + "(location_hash, atm_name, atm_address, pincode, last_seen, latitude, longitude) VALUES (?, ?, ?, ?, ?, ?, ?)");
+                 PreparedStatement status = conn.prepareStatement("INSERT INTO atm_latest_status "
+                    + "(location_hash, atm_name, atm_address, cash_status, deposit_status, passbook_status, report_id, report_timestamp, confirmations) "
+                    + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                for (int i = 0; i < atms; i++) {
+                    String name = StubGemini.atmName(i);
+                    String address = StubGemini.atmAddress(pincode, i);
+                    byte[] hash = AtmCatalog.locationHash(name, address);
+                    loc.setBytes(1, hash);
+                    loc.setString(2, name);
+                    loc.setString(3, address);
+                    loc.setString(4, pincode);
+                    loc.setTimestamp(5, now);
+                    loc.setDouble(6, StubGemini.latitude(i));
+                    loc.setDouble(7, StubGemini.longitude(i));
+                    loc.addBatch();
+
+                    status.setBytes(1, hash);
+                    status.setString(2, name);
+                    status.setString(3, address);
+                    status.setInt(4, CASH[i % CASH.length].getCode());
+                    status.setInt(5, (i % 3 == 0 ? AtmStatus.NOT_WORKING : AtmStatus.WORKING).getCode());
+                    status.setInt(6, AtmStatus.WORKING.getCode());
+                    status.setLong(7, i + 1);
+                    status.setTimestamp(8, now);
+                    status.setInt(9, 1 + i % 4);
+                    status.addBatch();
+                }
+                loc.executeBatch();
+                status.executeBatch();
+            }
+            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO atm_pincode_refresh (pincode, refreshed_at, atm_count) "
+                    + "VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE refreshed_at = VALUES(refreshed_at), atm_count = VALUES(atm_count)")) {
+                ps.setString(1, pincode);
+                ps.setTimestamp(2, now);
+                ps.setInt(3, atms);
+                ps.executeUpdate();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot seed pincode " + pincode + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Connection connection() throws SQLException {
+        Connection conn = DatabaseConnector.getConnection();
+        if (conn == null) throw new SQLException("No DB connection for " + AppConfig.get("MYSQL_URL"));
+        return conn;
+    }
+}
@@ -0,0 +1,90 @@
+import bench.Targets;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * bench.Targets backed by the application classes; loaded by name from Targets.load().
+ */
+public class BenchTargets implements Targets {
+
+    private static final Gson gson = new Gson();
+
+    @Override
+    public void seedDatabase(String pincode, int atms) {
+        BenchDatabase.seed(pincode, atms);
+    }
+
+    @Override
+    public Function<String, List<?>> atmFinder() {
+        AtmFinder finder = new AtmFinder();
+        return pincode -> finder.findAvailableAtms(pincode, 0);
+    }
+
+    @Override
+    public Function<String, String> geminiText() {
+        return GeminiResponses::generatedText;
+    }
+
+    @Override
+    public ToIntFunction<String> atmLines() {
+        return text -> {
+            List<AtmLocation> atms = new ArrayList<>();
+            AtmLineParser parser = new AtmLineParser(atms::add);
+            parser.accept(text);
+            parser.finish();
+            return atms.size();
+        };
+    }
+
+    @Override
+    public String geminiResponse(String pincode, int atms) {
+        return StubGemini.response(StubGemini.atmText(pincode, atms));
+    }
+
+    @Override
+    public Supplier<String> atmsToString(int count, boolean withReports) {
+        List<AtmLocation> atms = sampleAtms(count, withReports);
+        return () -> gson.toJson(atms);
+    }
+
+    @Override
+    public Consumer<Writer> atmsToWriter(int count, boolean withReports) {
+        List<AtmLocation> atms = sampleAtms(count, withReports);
+        return out -> {
+            try {
+                JsonWriter json = new JsonWriter(out);
+                json.beginArray();
+                for (AtmLocation loc : atms) gson.toJson(loc, AtmLocation.class, json);
+                json.endArray();
+                json.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static List<AtmLocation> sampleAtms(int count, boolean withReports) {
+        List<AtmLocation> atms = new ArrayList<>(count);
+        Timestamp reported = new Timestamp(System.currentTimeMillis());
+        AtmStatus[] statuses = AtmStatus.values();
+        for (int i = 0; i < count; i++) {
+            AtmReport report = withReports
+                    ? new AtmReport(statuses[i % statuses.length], AtmStatus.WORKING, AtmStatus.NOT_AVAILABLE, reported, 1 + i % 5)
+                    : null;
+            atms.add(new AtmLocation(StubGemini.atmName(i), StubGemini.atmAddress("600001", i),
+                    StubGemini.latitude(i), StubGemini.longitude(i), report));
+        }
+        return atms;
+    }
+}
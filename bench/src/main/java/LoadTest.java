@@ -0,0 +1,230 @@
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closed-loop HTTP load test of the ATM API.
+ *
+ * Starts StubGemini and MainApi in this JVM, with the app pointed at the stub and at the
+ * bench database (BenchDatabase: H2 in MySQL mode unless MYSQL_URL is set). Then threads
+ * virtual users each send a request, wait for the response and send the next one, for
+ * warmup seconds (not recorded) plus duration seconds. Throughput is therefore what the
+ * API sustains at that concurrency, and latencies are per-request service times.
+ *
+ * Each request is GET /api/atms?pincode=... for one of pincodes pincodes picked at
+ * random, or with probability reports a POST /api/report for one of that pincode's ATMs.
+ * A seeded fraction of the pincodes is put into the DB catalog up front; the others go
+ * to Gemini on first use and are then served from the catalog and the cache.
+ *
+ * Options, as name=value arguments:
+ * - threads (default 16), warmup (5 seconds), duration (30 seconds)
+ * - pincodes (200), seeded (0.5), atms (20 ATMs per pincode)
+ * - reports (0.05)
+ * - geminiDelayMs (800) how long the stub takes per Gemini call
+ * - target: base URL of an API that is already running; nothing is started or seeded then
+ *
+ * App settings can be passed as system properties, e.g. -DATM_CACHE_TTL_SECONDS=5.
+ * RATE_LIMIT_ENABLED defaults to false here so the limiter does not shape the load.
+ */
+public class LoadTest {
+
+    private static final Gson gson = new Gson();
+    private static final double[] QUANTILES = {0.50, 0.95, 0.99, 0.999, 1.0};
+
+    private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected name=value, got " + arg);
+            opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int threads = Integer.parseInt(opts.getOrDefault("threads", "16"));
+        int warmup = Integer.parseInt(opts.getOrDefault("warmup", "5"));
+        int duration = Integer.parseInt(opts.getOrDefault("duration", "30"));
+        int pincodes = Integer.parseInt(opts.getOrDefault("pincodes", "200"));
+        double seeded = Double.parseDouble(opts.getOrDefault("seeded", "0.5"));
+        int atms = Integer.parseInt(opts.getOrDefault("atms", "20"));
+        double reports = Double.parseDouble(opts.getOrDefault("reports", "0.05"));
+        long geminiDelayMs = Long.parseLong(opts.getOrDefault("geminiDelayMs", "800"));
+        String target = opts.get("target");
+
+        StubGemini stub = null;
+        if (target == null) {
+            stub = new StubGemini(0, geminiDelayMs, atms);
+            stub.start();
+            int port = freePort();
+            defaultProperty("GEMINI_URL", stub.generateContentUrl());
+            defaultProperty("GEMINI_API_KEY", "bench");
+            defaultProperty("RATE_LIMIT_ENABLED", "false");
+            System.setProperty("PORT", Integer.toString(port));
+            String db = BenchDatabase.use();
+            int seededCount = (int) Math.round(pincodes * seeded);
+            for (int i = 0; i < seededCount; i++) BenchDatabase.seed(pincode(i), atms);
+            MainApi.main(new String[0]);
+            target = "http://127.0.0.1:" + port;
+            System.out.println("API on " + target + ", database " + db + ", " + seededCount + "/" + pincodes
+                    + " pincodes seeded, stub Gemini " + geminiDelayMs + " ms");
+        }
+        awaitReady(target);
+
+        LoadTest test = new LoadTest();
+        test.run(target, threads, warmup, duration, pincodes, atms, reports);
+        if (stub != null) {
+            System.out.println("Stub Gemini calls: " + stub.calls());
+            stub.stop();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Wait until target's /ready answers 200, so the service's own warm-up is not measured.
+     */
+    private static void awaitReady(String target) throws InterruptedException {
+        HttpClient http = HttpClient.newHttpClient();
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 120_000) {
+            try {
+                HttpResponse<Void> r = http.send(HttpRequest.newBuilder(URI.create(target + "/ready")).build(),
+                        HttpResponse.BodyHandlers.discarding());
+                if (r.statusCode() == 200 || r.statusCode() == 404) {
+                    System.out.println("Ready after " + (System.currentTimeMillis() - start) + " ms");
+                    return;
+                }
+            } catch (IOException e) {
+                // not listening yet
+            }
+            Thread.sleep(200);
+        }
+        System.out.println("Warning: " + target + "/ready did not report ready, starting anyway");
+    }
+
+    private void run(String target, int threads, int warmup, int duration, int pincodes, int atms, double reports)
+            throws InterruptedException {
+        HttpClient http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        endpoint("GET /api/atms");
+        endpoint("POST /api/report");
+
+        long start = System.nanoTime();
+        long recordFrom = start + warmup * 1_000_000_000L;
+        long end = recordFrom + duration * 1_000_000_000L;
+        System.out.println("Running " + threads + " users: " + warmup + " s warm-up, " + duration + " s measured");
+
+        Thread[] users = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            users[i] = new Thread(() -> user(http, target, pincodes, atms, reports, recordFrom, end), "load-user-" + i);
+            users[i].start();
+        }
+        for (Thread t : users) t.join();
+        report(duration);
+    }
+
+    private void user(HttpClient http, String target, int pincodes, int atms, double reports, long recordFrom, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            long t0 = System.nanoTime();
+            if (t0 >= end) return;
+            String pincode = pincode(random.nextInt(pincodes));
+            HttpRequest request;
+            Endpoint endpoint;
+            if (random.nextDouble() < reports) {
+                int atm = random.nextInt(atms);
+                AtmReportData data = new AtmReportData();
+                data.name = StubGemini.atmName(atm);
+                data.address = StubGemini.atmAddress(pincode, atm);
+                data.cashStatus = random.nextBoolean() ? "WORKING" : "OUT_OF_CASH";
+                data.depositStatus = "WORKING";
+                data.passbookStatus = "NOT_WORKING";
+                request = HttpRequest.newBuilder(URI.create(target + "/api/report"))
+                        .timeout(Duration.ofSeconds(60))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(data)))
+                        .build();
+                endpoint = endpoints.get("POST /api/report");
+            } else {
+                request = HttpRequest.newBuilder(URI.create(target + "/api/atms?pincode=" + pincode))
+                        .timeout(Duration.ofSeconds(60))
+                        .GET()
+                        .build();
+                endpoint = endpoints.get("GET /api/atms");
+            }
+            int status;
+            try {
+                status = http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            } catch (IOException e) {
+                status = -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (t0 >= recordFrom) endpoint.record(status, System.nanoTime() - t0);
+        }
+    }
+
+    private void report(int duration) {
+        System.out.printf("%n%-18s %9s %8s %9s %9s %9s %9s %9s %9s%n",
+                "endpoint", "requests", "errors", "req/s", "p50 ms", "p95 ms", "p99 ms", "p99.9 ms", "max ms");
+        long total = 0;
+        for (Map.Entry<String, Endpoint> e : endpoints.entrySet()) {
+            Endpoint ep = e.getValue();
+            long count = ep.latency.count();
+            total += count;
+            System.out.printf("%-18s %9d %8d %9.1f", e.getKey(), count, ep.errors.sum(), count / (double) duration);
+            for (double q : QUANTILES) System.out.printf(" %9.1f", ep.latency.quantileSeconds(q) * 1000);
+            System.out.println();
+        }
+        System.out.printf("%-18s %9d %8s %9.1f%n", "total", total, "", total / (double) duration);
+        for (Map.Entry<String, Endpoint> e : endpoints.entrySet()) {
+            Map<Integer, Long> byStatus = new TreeMap<>();
+            e.getValue().statuses.forEach((status, n) -> byStatus.put(status, n.sum()));
+            System.out.println(e.getKey() + " statuses (-1 = I/O error): " + byStatus);
+        }
+        System.out.println("Latencies are upper bounds of LatencyHistogram buckets (within 12.5%).");
+    }
+
+    private void endpoint(String name) {
+        endpoints.put(name, new Endpoint());
+    }
+
+    static String pincode(int i) {
+        return Integer.toString(600000 + i);
+    }
+
+    private static void defaultProperty(String name, String value) {
+        if (AppConfig.get(name) == null) System.setProperty(name, value);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static final class Endpoint {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        void record(int status, long nanos) {
+            latency.recordNanos(nanos);
+            if (status < 200 || status >= 300) errors.increment();
+            statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for Gemini's generateContent endpoint, so load tests neither depend on nor
+ * pay for the real API.
+ *
+ * Every POST is answered after delayMillis with a generateContent response whose text
+ * lists atmsPerPincode ATMs for the pincode named in the prompt, one
+ * "Name :: Address :: Latitude, Longitude" line each. A request with alt=sse in its query
+ * (GeminiClient.stream) gets the same lines as server-sent events, one per event. ATM
+ * names and addresses are deterministic, so BenchDatabase.seed() and the stub describe
+ * the same ATMs.
+ */
+public class StubGemini {
+
+    private static final Pattern PINCODE = Pattern.compile("pincode (\\w+)");
+    private static final String[] SAFETY_CATEGORIES = {
+        "HARM_CATEGORY_SEXUALLY_EXPLICIT", "HARM_CATEGORY_HATE_SPEECH", "HARM_CATEGORY_HARASSMENT", "HARM_CATEGORY_DANGEROUS_CONTENT"};
+
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final long delayMillis;
+    private final int atmsPerPincode;
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * port 0 picks a free port.
+     */
+    public StubGemini(int port, long delayMillis, int atmsPerPincode) throws IOException {
+        this.delayMillis = delayMillis;
+        this.atmsPerPincode = atmsPerPincode;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 256);
+        // Unbounded, like the real API from our side: the app's GeminiClient limits concurrency.
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "stub-gemini");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(workers);
+        server.createContext("/", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    /**
+     * Value for GEMINI_URL.
+     */
+    public String generateContentUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1beta/models/stub:generateContent";
+    }
+
+    public long calls() {
+        return calls.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            calls.incrementAndGet();
+            Matcher m = PINCODE.matcher(body);
+            String pincode = m.find() ? m.group(1) : "000000";
+            if (delayMillis > 0) Thread.sleep(delayMillis);
+
+            String query = exchange.getRequestURI().getRawQuery();
+            OutputStream out = exchange.getResponseBody();
+            if (query != null && query.contains("alt=sse")) {
+                exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+                exchange.sendResponseHeaders(200, 0);
+                for (int i = 0; i < atmsPerPincode; i++) {
+                    String event = "data: " + response(atmLine(pincode, i) + "\n") + "\n\n";
+                    out.write(event.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } else {
+                byte[] bytes = response(atmText(pincode, atmsPerPincode)).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                out.write(bytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.sendResponseHeaders(503, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static String atmName(int i) {
+        return "Bench Bank ATM " + (i + 1);
+    }
+
+    static String atmAddress(String pincode, int i) {
+        return (i + 1) + " Bench Road, " + pincode;
+    }
+
+    static double latitude(int i) {
+        return 13.0 + (i % 100) * 0.001;
+    }
+
+    static double longitude(int i) {
+        return 80.2 + (i / 100) * 0.001;
+    }
+
+    static String atmLine(String pincode, int i) {
+        return atmName(i) + " :: " + atmAddress(pincode, i) + " :: " + latitude(i) + ", " + longitude(i);
+    }
+
+    /**
+     * The generated text listing atms ATMs for pincode.
+     */
+    public static String atmText(String pincode, int atms) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < atms; i++) {
+            if (i > 0) sb.append('\n');
+            sb.append(atmLine(pincode, i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A generateContent response carrying text, with the candidate metadata, safety
+     * ratings and usage block of a real one.
+     */
+    public static String response(String text) {
+        StringWriter out = new StringWriter(text.length() + 768);
+        try (JsonWriter json = new JsonWriter(out)) {
+            json.beginObject();
+            json.name("candidates").beginArray().beginObject();
+            json.name("content").beginObject();
+            json.name("parts").beginArray().beginObject().name("text").value(text).endObject().endArray();
+            json.name("role").value("model");
+            json.endObject();
+            json.name("finishReason").value("STOP");
+            json.name("index").value(0);
+            json.name("safetyRatings").beginArray();
+            for (String category : SAFETY_CATEGORIES) {
+                json.beginObject().name("category").value(category).name("probability").value("NEGLIGIBLE").endObject();
+            }
+            json.endArray();
+            json.endObject().endArray();
+            int tokens = text.length() / 4;
+            json.name("usageMetadata").beginObject()
+                    .name("promptTokenCount").value(42)
+                    .name("candidatesTokenCount").value(tokens)
+                    .name("totalTokenCount").value(42 + tokens)
+                    .endObject();
+            json.name("modelVersion").value("stub");
+            json.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * AtmFinder.findAvailableAtms for a pincode with the given number of catalogued ATMs, half
+ * of which have cash.
+ *
+ * Against the in-memory H2 stand-in (the default, see BenchDatabase) the query itself is
+ * cheap, so the score is mostly pool borrow, statement setup and mapping each row into
+ * the result; with -DMYSQL_URL=... it includes a real MySQL round trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AtmFinderBenchmark {
+
+    private static final String PINCODE = "600001";
+
+    @Param({"10", "100", "1000"})
+    int atms;
+
+    private Function<String, List<?>> finder;
+
+    @Setup
+    public void setUp() {
+        Targets targets = Targets.load();
+        targets.seedDatabase(PINCODE, atms);
+        finder = targets.atmFinder();
+        int found = finder.apply(PINCODE).size();
+        if (found != atms / 2) throw new IllegalStateException("Expected " + atms / 2 + " ATMs with cash, found " + found);
+    }
+
+    @Benchmark
+    public List<?> findAvailableAtms() {
+        return finder.apply(PINCODE);
+    }
+}
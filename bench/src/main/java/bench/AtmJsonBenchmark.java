@@ -0,0 +1,95 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Gson serialization of AtmLocation lists as returned by /api/atms.
+ *
+ * - asString: gson.toJson(list), building the whole body as a String
+ * - streamed: one gson.toJson(location, AtmLocation.class, jsonWriter) per ATM onto a
+ *   reused Writer, the way MainApi streams the response
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AtmJsonBenchmark {
+
+    @Param({"10", "100"})
+    int atms;
+
+    @Param({"false", "true"})
+    boolean withReports;
+
+    private Supplier<String> asString;
+    private Consumer<Writer> toWriter;
+    private final CountingWriter out = new CountingWriter();
+
+    @Setup
+    public void setUp() {
+        Targets targets = Targets.load();
+        asString = targets.atmsToString(atms, withReports);
+        toWriter = targets.atmsToWriter(atms, withReports);
+    }
+
+    @Benchmark
+    public String asString() {
+        return asString.get();
+    }
+
+    @Benchmark
+    public long streamed() {
+        out.reset();
+        toWriter.accept(out);
+        return out.count;
+    }
+
+    /**
+     * Discards what is written, like a socket buffer would, so only serialization is measured.
+     */
+    private static final class CountingWriter extends Writer {
+        long count;
+
+        void reset() {
+            count = 0;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(int c) {
+            count++;
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+}
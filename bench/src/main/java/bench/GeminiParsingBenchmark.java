@@ -0,0 +1,72 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Turning a Gemini ATM lookup response into ATMs.
+ *
+ * - streamingText: GeminiResponses.generatedText (JsonReader, stops at the first text)
+ * - legacyText: the org.json tree parser it replaced (baseline)
+ * - atmLines: AtmLineParser over the extracted text
+ * - lookup: streamingText followed by atmLines, what AtmService does per Gemini response
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeminiParsingBenchmark {
+
+    @Param({"10", "50"})
+    int atms;
+
+    private String response;
+    private String text;
+    private Function<String, String> geminiText;
+    private ToIntFunction<String> atmLines;
+
+    @Setup
+    public void setUp() {
+        Targets targets = Targets.load();
+        geminiText = targets.geminiText();
+        atmLines = targets.atmLines();
+        response = targets.geminiResponse("600001", atms);
+        text = geminiText.apply(response);
+        if (atmLines.applyAsInt(text) != atms) throw new IllegalStateException("Stub response did not parse to " + atms + " ATMs");
+    }
+
+    @Benchmark
+    public String streamingText() {
+        return geminiText.apply(response);
+    }
+
+    @Benchmark
+    public String legacyText() {
+        return LegacyGeminiParser.parseGeminiGeneratedText(response);
+    }
+
+    @Benchmark
+    public int atmLines() {
+        return atmLines.applyAsInt(text);
+    }
+
+    @Benchmark
+    public int lookup() {
+        return atmLines.applyAsInt(geminiText.apply(response));
+    }
+}
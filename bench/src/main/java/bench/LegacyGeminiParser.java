@@ -0,0 +1,38 @@
+package bench;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The org.json parser AtmService used before GeminiResponses, kept verbatim as the
+ * baseline for GeminiParsingBenchmark.
+ *
+ * It builds the whole response as a tree before looking anything up. It also predates
+ * content.parts[], so on the v1beta shape it walks every fallback and returns null; the
+ * cost is dominated by building the tree either way.
+ */
+final class LegacyGeminiParser {
+
+    private LegacyGeminiParser() {}
+
+    static String parseGeminiGeneratedText(String respBody) {
+        JSONObject root = new JSONObject(respBody);
+        JSONArray candidates = root.optJSONArray("candidates");
+        if (candidates != null && candidates.length() > 0) {
+            JSONObject first = candidates.getJSONObject(0);
+            JSONArray content = first.optJSONArray("content");
+            if (content != null) {
+                for (int i = 0; i < content.length(); i++) {
+                    JSONObject c = content.getJSONObject(i);
+                    if (c.has("text")) return c.getString("text");
+                    if (c.has("type") && "output_text".equals(c.optString("type")) && c.has("text")) return c.getString("text");
+                }
+            }
+            // try common field
+            if (first.has("output")) return first.optString("output");
+        }
+        // fallback to top-level text fields
+        if (root.has("output_text")) return root.optString("output_text");
+        return root.optString("text", null);
+    }
+}
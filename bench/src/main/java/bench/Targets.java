@@ -0,0 +1,63 @@
+package bench;
+
+import java.io.Writer;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * The application code under benchmark, handed out as plain functions.
+ *
+ * The application lives in the default package, which JMH does not accept for benchmark
+ * classes and which code in any named package cannot refer to. BenchTargets, in the
+ * default package, implements this interface and load() instantiates it by name, so a
+ * benchmark pays one interface call on top of the code it measures.
+ */
+public interface Targets {
+
+    static Targets load() {
+        try {
+            return (Targets) Class.forName("BenchTargets").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchTargets is not on the classpath", e);
+        }
+    }
+
+    /**
+     * Point the app at the bench database (see BenchDatabase) and give pincode atms ATMs,
+     * every other one with cash.
+     */
+    void seedDatabase(String pincode, int atms);
+
+    /**
+     * AtmFinder.findAvailableAtms(pincode, ...).
+     */
+    Function<String, List<?>> atmFinder();
+
+    /**
+     * GeminiResponses.generatedText(json).
+     */
+    Function<String, String> geminiText();
+
+    /**
+     * Generated text through AtmLineParser; returns the number of ATMs parsed.
+     */
+    ToIntFunction<String> atmLines();
+
+    /**
+     * A generateContent response listing atms ATMs for pincode, as StubGemini sends it.
+     */
+    String geminiResponse(String pincode, int atms);
+
+    /**
+     * Gson.toJson of count ATMs (with a latest report each if withReports) into a String.
+     */
+    Supplier<String> atmsToString(int count, boolean withReports);
+
+    /**
+     * The same ATMs streamed through a JsonWriter onto out, as /api/atms writes them.
+     */
+    Consumer<Writer> atmsToWriter(int count, boolean withReports);
+}
@@ -0,0 +1,11 @@
+-- add_atm_coordinates.sql
+-- Migration: coordinates for catalogued ATMs plus the indexes AtmGeoIndex uses to refresh
+-- its in-memory spatial index incrementally. Run after encode_report_statuses.sql.
+
+ALTER TABLE atm_locations
+  ADD COLUMN latitude DOUBLE NULL,
+  ADD COLUMN longitude DOUBLE NULL;
+
+-- Incremental refresh cursors
+CREATE INDEX idx_atm_locations_last_seen ON atm_locations (last_seen);
+CREATE INDEX idx_latest_report_timestamp ON atm_latest_status (report_timestamp);
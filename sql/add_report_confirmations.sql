@@ -0,0 +1,12 @@
+-- add_report_confirmations.sql
+-- Migration: identical reports for an ATM that arrive within REPORT_DEDUP_WINDOW_SECONDS of
+-- the row they repeat are coalesced into it by ReportWriter instead of inserting new rows.
+-- confirmations counts the reports a row stands for; last_confirmed_at is the newest of them.
+-- Run after encode_report_statuses.sql.
+
+ALTER TABLE ATM_reports
+  ADD COLUMN confirmations INT UNSIGNED NOT NULL DEFAULT 1,
+  ADD COLUMN last_confirmed_at TIMESTAMP NULL;
+
+ALTER TABLE atm_latest_status
+  ADD COLUMN confirmations INT UNSIGNED NOT NULL DEFAULT 1;
@@ -0,0 +1,32 @@
+-- create_atm_latest_status.sql
+-- Migration: one row per ATM holding its most recent report.
+-- ReportWriter upserts this table in the same transaction as each ATM_reports insert batch,
+-- so read paths do a primary-key lookup instead of sorting an ATM's whole report history.
+
+CREATE TABLE IF NOT EXISTS atm_latest_status (
+  -- SHA-256 of atm_name + NUL + atm_address (same as atm_locations.location_hash)
+  location_hash BINARY(32) NOT NULL PRIMARY KEY,
+  atm_name VARCHAR(255) NOT NULL,
+  atm_address VARCHAR(500) NOT NULL,
+  cash_status VARCHAR(50),
+  deposit_status VARCHAR(50),
+  passbook_status VARCHAR(50),
+  report_id INT NOT NULL,
+  report_timestamp TIMESTAMP NOT NULL
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Backfill from the existing report history
+INSERT INTO atm_latest_status (location_hash, atm_name, atm_address, cash_status, deposit_status, passbook_status, report_id, report_timestamp)
+SELECT UNHEX(SHA2(CONCAT(atm_name, CHAR(0), atm_address), 256)),
+       atm_name, atm_address, cash_status, deposit_status, passbook_status, report_id, report_timestamp
+  FROM (
+    SELECT r.*, ROW_NUMBER() OVER (PARTITION BY atm_name, atm_address ORDER BY report_timestamp DESC, report_id DESC) AS rn
+      FROM ATM_reports r
+  ) latest
+ WHERE rn = 1
+ON DUPLICATE KEY UPDATE
+  cash_status = VALUES(cash_status),
+  deposit_status = VALUES(deposit_status),
+  passbook_status = VALUES(passbook_status),
+  report_id = VALUES(report_id),
+  report_timestamp = VALUES(report_timestamp);
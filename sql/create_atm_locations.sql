@@ -0,0 +1,30 @@
+-- create_atm_locations.sql
+-- Migration: persistent catalog of ATM locations discovered through Gemini, keyed by pincode.
+-- AtmService fills it incrementally and serves pincode lookups from it while it is fresh,
+-- so the hot read path no longer needs an LLM call or a LIKE '%pincode%' scan of ATM_reports.
+
+CREATE TABLE IF NOT EXISTS atm_locations (
+  atm_id INT AUTO_INCREMENT PRIMARY KEY,
+  -- SHA-256 of atm_name + NUL + atm_address, computed by the application
+  location_hash BINARY(32) NOT NULL,
+  atm_name VARCHAR(255) NOT NULL,
+  atm_address VARCHAR(500) NOT NULL,
+  pincode VARCHAR(10) NOT NULL,
+  first_seen TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  last_seen TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  -- One row per ATM per pincode; the pincode prefix doubles as the lookup index
+  UNIQUE KEY uq_atm_locations_pincode (pincode, location_hash),
+  KEY idx_atm_locations_hash (location_hash)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- When each pincode was last refreshed from Gemini (also records pincodes with no ATMs)
+CREATE TABLE IF NOT EXISTS atm_pincode_refresh (
+  pincode VARCHAR(10) NOT NULL PRIMARY KEY,
+  refreshed_at TIMESTAMP NOT NULL,
+  atm_count INT NOT NULL DEFAULT 0
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Seed the catalog with the ATM from the sample report so AtmFinder has something to join
+INSERT IGNORE INTO atm_locations (location_hash, atm_name, atm_address, pincode)
+  VALUES (UNHEX(SHA2(CONCAT('Test SBI ATM', CHAR(0), '123 Test Street, 600001'), 256)),
+          'Test SBI ATM', '123 Test Street, 600001', '600001');
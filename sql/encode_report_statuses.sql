@@ -0,0 +1,65 @@
+-- encode_report_statuses.sql
+-- Migration: store cash_status / deposit_status / passbook_status as TINYINT codes instead of VARCHAR(50).
+-- Codes match the AtmStatus enum in the Java code:
+--   0 UNKNOWN, 1 WORKING, 2 AVAILABLE, 3 NOT_WORKING, 4 NOT_AVAILABLE, 5 OUT_OF_CASH, 6 BROKEN
+-- Run after create_atm_latest_status.sql. Existing free-text values are converted with the same
+-- aliases AtmStatus.parse() accepts; anything else becomes 0 (UNKNOWN).
+
+DELIMITER //
+CREATE FUNCTION atm_status_code(raw VARCHAR(50)) RETURNS TINYINT UNSIGNED DETERMINISTIC
+BEGIN
+  DECLARE s VARCHAR(50) DEFAULT REPLACE(REPLACE(UPPER(TRIM(raw)), ' ', '_'), '-', '_');
+  RETURN CASE
+    WHEN s IN ('WORKING', 'OK', 'UP') THEN 1
+    WHEN s IN ('AVAILABLE', 'YES', 'Y', 'TRUE') THEN 2
+    WHEN s IN ('NOT_WORKING', 'DOWN', 'OUT_OF_ORDER') THEN 3
+    WHEN s IN ('NOT_AVAILABLE', 'UNAVAILABLE', 'NO', 'N', 'FALSE') THEN 4
+    WHEN s IN ('OUT_OF_CASH', 'NO_CASH', 'EMPTY') THEN 5
+    WHEN s = 'BROKEN' THEN 6
+    ELSE 0
+  END;
+END //
+DELIMITER ;
+
+-- 1) ATM_reports
+ALTER TABLE ATM_reports
+  ADD COLUMN cash_code TINYINT UNSIGNED NOT NULL DEFAULT 0,
+  ADD COLUMN deposit_code TINYINT UNSIGNED NOT NULL DEFAULT 0,
+  ADD COLUMN passbook_code TINYINT UNSIGNED NOT NULL DEFAULT 0;
+
+UPDATE ATM_reports
+   SET cash_code = atm_status_code(cash_status),
+       deposit_code = atm_status_code(deposit_status),
+       passbook_code = atm_status_code(passbook_status);
+
+ALTER TABLE ATM_reports
+  DROP COLUMN cash_status,
+  DROP COLUMN deposit_status,
+  DROP COLUMN passbook_status,
+  RENAME COLUMN cash_code TO cash_status,
+  RENAME COLUMN deposit_code TO deposit_status,
+  RENAME COLUMN passbook_code TO passbook_status;
+
+-- 2) atm_latest_status
+ALTER TABLE atm_latest_status
+  ADD COLUMN cash_code TINYINT UNSIGNED NOT NULL DEFAULT 0,
+  ADD COLUMN deposit_code TINYINT UNSIGNED NOT NULL DEFAULT 0,
+  ADD COLUMN passbook_code TINYINT UNSIGNED NOT NULL DEFAULT 0;
+
+UPDATE atm_latest_status
+   SET cash_code = atm_status_code(cash_status),
+       deposit_code = atm_status_code(deposit_status),
+       passbook_code = atm_status_code(passbook_status);
+
+ALTER TABLE atm_latest_status
+  DROP COLUMN cash_status,
+  DROP COLUMN deposit_status,
+  DROP COLUMN passbook_status,
+  RENAME COLUMN cash_code TO cash_status,
+  RENAME COLUMN deposit_code TO deposit_status,
+  RENAME COLUMN passbook_code TO passbook_status;
+
+-- Equality lookups such as "ATMs whose latest report says they have cash"
+CREATE INDEX idx_latest_cash_status ON atm_latest_status (cash_status);
+
+DROP FUNCTION atm_status_code;
@@ -0,0 +1,43 @@
+-- normalize_location_hashes.sql
+-- Migration: location_hash is now computed over the normalized name and address
+-- (whitespace runs collapsed to one space, trimmed, lower-cased; see AtmCatalog.normalize),
+-- so ATMs that differ only in case or spacing share one hash again, as they matched under
+-- MySQL's case-insensitive comparison before. Recomputes the stored hashes and merges the
+-- rows that now collide. Run after add_report_confirmations.sql and add_atm_coordinates.sql,
+-- with the application stopped: hashes written by an older build would not match.
+
+-- 1) atm_locations: per pincode keep the most recently seen spelling of each ATM
+DELETE l FROM atm_locations l
+  JOIN atm_locations k
+    ON k.pincode = l.pincode
+   AND LOWER(TRIM(REGEXP_REPLACE(k.atm_name, '[[:space:]]+', ' '))) = LOWER(TRIM(REGEXP_REPLACE(l.atm_name, '[[:space:]]+', ' ')))
+   AND LOWER(TRIM(REGEXP_REPLACE(k.atm_address, '[[:space:]]+', ' '))) = LOWER(TRIM(REGEXP_REPLACE(l.atm_address, '[[:space:]]+', ' ')))
+   AND (k.last_seen > l.last_seen OR (k.last_seen = l.last_seen AND k.atm_id < l.atm_id));
+
+UPDATE atm_locations
+   SET location_hash = UNHEX(SHA2(CONCAT(
+         LOWER(TRIM(REGEXP_REPLACE(atm_name, '[[:space:]]+', ' '))), CHAR(0),
+         LOWER(TRIM(REGEXP_REPLACE(atm_address, '[[:space:]]+', ' ')))), 256));
+
+-- 2) atm_latest_status: rebuild, keeping the newest report per normalized ATM
+CREATE TABLE atm_latest_status_new LIKE atm_latest_status;
+
+INSERT INTO atm_latest_status_new (location_hash, atm_name, atm_address, cash_status, deposit_status, passbook_status,
+                                   report_id, report_timestamp, confirmations)
+SELECT location_hash, atm_name, atm_address, cash_status, deposit_status, passbook_status,
+       report_id, report_timestamp, confirmations
+  FROM (
+    SELECT s.*, ROW_NUMBER() OVER (PARTITION BY location_hash ORDER BY report_timestamp DESC, report_id DESC) AS rn
+      FROM (
+        SELECT UNHEX(SHA2(CONCAT(
+                 LOWER(TRIM(REGEXP_REPLACE(atm_name, '[[:space:]]+', ' '))), CHAR(0),
+                 LOWER(TRIM(REGEXP_REPLACE(atm_address, '[[:space:]]+', ' ')))), 256)) AS location_hash,
+               atm_name, atm_address, cash_status, deposit_status, passbook_status,
+               report_id, report_timestamp, confirmations
+          FROM atm_latest_status
+      ) s
+  ) latest
+ WHERE rn = 1;
+
+RENAME TABLE atm_latest_status TO atm_latest_status_old, atm_latest_status_new TO atm_latest_status;
+DROP TABLE atm_latest_status_old;
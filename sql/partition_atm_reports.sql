@@ -0,0 +1,38 @@
+-- partition_atm_reports.sql
+-- Migration: RANGE-partition ATM_reports by month of report_timestamp so old reports can be
+-- archived and dropped a whole partition at a time (see ReportRetention) instead of growing
+-- the table and its indexes forever.
+-- Run after add_report_confirmations.sql. The ALTERs rebuild the table; run off-peak.
+--
+-- MySQL requires the partitioning column in every unique key, so the primary key becomes
+-- (report_id, report_timestamp); report_id stays AUTO_INCREMENT and unique in practice.
+-- Nothing reads ATM_reports by (atm_name, atm_address) any more (reads go to
+-- atm_latest_status), so idx_atm_location is dropped rather than carried into every partition.
+-- ReportRetention adds future monthly partitions by splitting pmax, so the list below only
+-- needs to cover the past and the current months.
+
+SET time_zone = '+00:00';
+
+ALTER TABLE ATM_reports
+  MODIFY report_timestamp TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  DROP PRIMARY KEY,
+  ADD PRIMARY KEY (report_id, report_timestamp),
+  DROP INDEX idx_atm_location;
+
+ALTER TABLE ATM_reports
+PARTITION BY RANGE (UNIX_TIMESTAMP(report_timestamp)) (
+  PARTITION pold VALUES LESS THAN (UNIX_TIMESTAMP('2026-01-01 00:00:00')),
+  PARTITION p202601 VALUES LESS THAN (UNIX_TIMESTAMP('2026-02-01 00:00:00')),
+  PARTITION p202602 VALUES LESS THAN (UNIX_TIMESTAMP('2026-03-01 00:00:00')),
+  PARTITION p202603 VALUES LESS THAN (UNIX_TIMESTAMP('2026-04-01 00:00:00')),
+  PARTITION p202604 VALUES LESS THAN (UNIX_TIMESTAMP('2026-05-01 00:00:00')),
+  PARTITION p202605 VALUES LESS THAN (UNIX_TIMESTAMP('2026-06-01 00:00:00')),
+  PARTITION p202606 VALUES LESS THAN (UNIX_TIMESTAMP('2026-07-01 00:00:00')),
+  PARTITION p202607 VALUES LESS THAN (UNIX_TIMESTAMP('2026-08-01 00:00:00')),
+  PARTITION p202608 VALUES LESS THAN (UNIX_TIMESTAMP('2026-09-01 00:00:00')),
+  PARTITION p202609 VALUES LESS THAN (UNIX_TIMESTAMP('2026-10-01 00:00:00')),
+  PARTITION p202610 VALUES LESS THAN (UNIX_TIMESTAMP('2026-11-01 00:00:00')),
+  PARTITION p202611 VALUES LESS THAN (UNIX_TIMESTAMP('2026-12-01 00:00:00')),
+  PARTITION p202612 VALUES LESS THAN (UNIX_TIMESTAMP('2027-01-01 00:00:00')),
+  PARTITION pmax VALUES LESS THAN MAXVALUE
+);
@@ -0,0 +1,61 @@
+/**
+ * Reads configuration values from JVM system properties first and then from
+ * environment variables, so values can be set with -DNAME=... or exported in the shell.
+ */
+public final class AppConfig {
+
+    private AppConfig() {}
+
+    /**
+     * Return the raw value for name, or null if it is not set or blank.
+     */
+    public static String get(String name) {
+        String v = System.getProperty(name);
+        if (v == null || v.isBlank()) v = System.getenv(name);
+        return (v == null || v.isBlank()) ? null : v.trim();
+    }
+
+    public static String getString(String name, String defaultValue) {
+        String v = get(name);
+        return v != null ? v : defaultValue;
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        String v = get(name);
+        if (v == null) return defaultValue;
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid " + name + " value '" + v + "', falling back to " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String v = get(name);
+        if (v == null) return defaultValue;
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid " + name + " value '" + v + "', falling back to " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String name, double defaultValue) {
+        String v = get(name);
+        if (v == null) return defaultValue;
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid " + name + " value '" + v + "', falling back to " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String v = get(name);
+        if (v == null) return defaultValue;
+        return v.equalsIgnoreCase("true") || v.equals("1") || v.equalsIgnoreCase("yes");
+    }
+}
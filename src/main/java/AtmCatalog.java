@@ -0,0 +1,194 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Persistent catalog of ATM locations per pincode (tables atm_locations and
+ * atm_pincode_refresh, see sql/create_atm_locations.sql).
+ *
+ * AtmService writes every successfully parsed Gemini list here and reads it back
+ * through the indexed pincode column, so Gemini is only needed for pincodes that
+ * were never seen or whose catalog entry went stale.
+ */
+public class AtmCatalog {
+
+    /** Longest pincode value the pincode columns can hold. */
+    static final int MAX_PINCODE_LENGTH = 10;
+
+    /**
+     * Return the catalogued ATMs for pincode if the pincode was refreshed within
+     * maxAgeMillis, otherwise null. A fresh pincode with no ATMs yields an empty list.
+     */
+    public List<AtmLocation> findFresh(String pincode, long maxAgeMillis) {
+        return find(pincode, maxAgeMillis);
+    }
+
+    /**
+     * Return whatever the catalog holds for pincode regardless of age, or null if the
+     * pincode was never refreshed. Used as a fallback when Gemini is unavailable.
+     */
+    public List<AtmLocation> findAny(String pincode) {
+        return find(pincode, Long.MAX_VALUE);
+    }
+
+    /**
+     * Up to limit catalogued pincodes, most recently refreshed first (empty on DB errors).
+     * Used to prime the ATM list cache at startup.
+     */
+    public List<String> recentPincodes(int limit) {
+        List<String> pincodes = new ArrayList<>();
+        String sql = "SELECT pincode FROM atm_pincode_refresh ORDER BY refreshed_at DESC LIMIT ?";
+        try (Connection conn = DatabaseConnector.getReadConnection()) {
+            if (conn == null) return pincodes;
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) pincodes.add(rs.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            Log.error("catalog.list_failed", e);
+        }
+        return pincodes;
+    }
+
+    private List<AtmLocation> find(String pincode, long maxAgeMillis) {
+        if (!isStorable(pincode)) return null;
+        String refreshSql = "SELECT refreshed_at FROM atm_pincode_refresh WHERE pincode = ?";
+        String listSql = "SELECT atm_name, atm_address, latitude, longitude FROM atm_locations WHERE pincode = ? ORDER BY atm_id";
+        // A replica a little behind only makes a just-saved pincode look uncatalogued for a moment.
+        try (Connection conn = DatabaseConnector.getReadConnection()) {
+            if (conn == null) return null;
+            try (PreparedStatement ps = conn.prepareStatement(refreshSql)) {
+                ps.setString(1, pincode);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) return null;
+                    Timestamp refreshedAt = rs.getTimestamp(1);
+                    if (refreshedAt == null || System.currentTimeMillis() - refreshedAt.getTime() > maxAgeMillis) {
+                        return null;
+                    }
+                }
+            }
+            List<AtmLocation> atms = new ArrayList<>();
+            try (PreparedStatement ps = conn.prepareStatement(listSql)) {
+                ps.setString(1, pincode);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        atms.add(AtmRows.location(rs, 1, null));
+                    }
+                }
+            }
+            return Collections.unmodifiableList(atms);
+        } catch (SQLException e) {
+            Log.error("catalog.read_failed", e, "pincode", pincode);
+        }
+        return null;
+    }
+
+    /**
+     * Replace the catalog contents for pincode with atms in one transaction: new ATMs are
+     * inserted, known ones have last_seen bumped, and ATMs no longer listed are removed.
+     */
+    public void save(String pincode, List<AtmLocation> atms) {
+        if (!isStorable(pincode)) return;
+        String upsertSql = "INSERT INTO atm_locations (location_hash, atm_name, atm_address, pincode, last_seen, latitude, longitude) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE last_seen = VALUES(last_seen), "
+                + "latitude = COALESCE(VALUES(latitude), latitude), longitude = COALESCE(VALUES(longitude), longitude)";
+        String pruneSql = "DELETE FROM atm_locations WHERE pincode = ? AND last_seen < ?";
+        String refreshSql = "INSERT INTO atm_pincode_refresh (pincode, refreshed_at, atm_count) VALUES (?, ?, ?) "
+                + "ON DUPLICATE KEY UPDATE refreshed_at = VALUES(refreshed_at), atm_count = VALUES(atm_count)";
+
+        Timestamp now = new Timestamp(System.currentTimeMillis() / 1000 * 1000);
+        try (Connection conn = DatabaseConnector.getConnection()) {
+            if (conn == null) return;
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = conn.prepareStatement(upsertSql)) {
+                    for (AtmLocation atm : atms) {
+                        ps.setBytes(1, locationHash(atm.getName(), atm.getAddress()));
+                        ps.setString(2, atm.getName());
+                        ps.setString(3, atm.getAddress());
+                        ps.setString(4, pincode);
+                        ps.setTimestamp(5, now);
+                        ps.setObject(6, atm.getLatitude(), Types.DOUBLE);
+                        ps.setObject(7, atm.getLongitude(), Types.DOUBLE);
+                        ps.addBatch();
+                    }
+                    if (!atms.isEmpty()) ps.executeBatch();
+                }
+                try (PreparedStatement ps = conn.prepareStatement(pruneSql)) {
+                    ps.setString(1, pincode);
+                    ps.setTimestamp(2, now);
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = conn.prepareStatement(refreshSql)) {
+                    ps.setString(1, pincode);
+                    ps.setTimestamp(2, now);
+                    ps.setInt(3, atms.size());
+                    ps.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            Log.error("catalog.save_failed", e, "pincode", pincode);
+        }
+    }
+
+    private static boolean isStorable(String pincode) {
+        return pincode != null && !pincode.isEmpty() && pincode.length() <= MAX_PINCODE_LENGTH;
+    }
+
+    /**
+     * SHA-256 of normalize(name) + NUL + normalize(address). Matches
+     * UNHEX(SHA2(CONCAT(n(atm_name), CHAR(0), n(atm_address)), 256)) on the MySQL side, with
+     * n(x) = LOWER(TRIM(REGEXP_REPLACE(x, '[[:space:]]+', ' '))) (see
+     * sql/normalize_location_hashes.sql).
+     */
+    public static byte[] locationHash(String name, String address) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(normalize(name).getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(normalize(address).getBytes(StandardCharsets.UTF_8));
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * An ATM name or address as it is matched: whitespace runs collapsed to one space,
+     * trimmed and lower-cased, like the case-insensitive, trailing-space-blind comparison
+     * MySQL's default collation applied when reports were looked up by name and address.
+     */
+    static String normalize(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            sb.append(c);
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+}
@@ -10,85 +10,75 @@ import java.util.List;
  * Finds ATMs with sufficient cash for a requested withdrawal.
  *
  * The main method of interest is:
- *   public List<String> findAvailableAtms(String pincode, double withdrawalAmount)
+ *   public List<AtmLocation> findAvailableAtms(String pincode, double withdrawalAmount)
  *
- * It uses DatabaseConnector.getConnection() to obtain a JDBC connection.
+ * It uses DatabaseConnector.getReadConnection() (a read replica if configured). Each result
+ * carries its latest report; formatting for display is up to the caller (see main).
  */
 public class AtmFinder {
 
-    public List<String> findAvailableAtms(String pincode, double withdrawalAmount) {
-        List<String> results = new ArrayList<>();
-
-        Connection conn = null;
-        PreparedStatement ps = null;
-        ResultSet rs = null;
-
     // New schema uses ATM_reports with atm_name and atm_address (no numeric cash amounts).
-    // We'll search by pincode substring match inside atm_address and prefer reports that indicate availability.
-    String sql = "SELECT atm_name, atm_address, cash_status, deposit_status, passbook_status "
-        + "FROM ATM_reports "
-        + "WHERE LOWER(atm_address) LIKE ? "
-        + "AND (LOWER(cash_status) LIKE '%available%' OR LOWER(cash_status) LIKE '%yes%')";
+    // ATMs for a pincode come from the indexed atm_locations catalog; only their latest
+    // report (atm_latest_status, joined by primary key) decides whether they have cash.
+    // Statuses are AtmStatus codes, so "has cash" is a plain equality check.
+    // Columns are in AtmRows.location() then AtmRows.report() order.
+    private static final String SQL = "SELECT s.atm_name, s.atm_address, l.latitude, l.longitude, "
+            + "s.cash_status, s.deposit_status, s.passbook_status, s.report_timestamp, s.confirmations "
+            + "FROM atm_locations l "
+            + "JOIN atm_latest_status s ON s.location_hash = l.location_hash "
+            + "WHERE l.pincode = ? "
+            + "AND s.cash_status IN (?, ?)";
+
+    public List<AtmLocation> findAvailableAtms(String pincode, double withdrawalAmount) {
+        List<AtmLocation> results = new ArrayList<>();
 
-        try {
-            conn = DatabaseConnector.getConnection();
+        try (Connection conn = DatabaseConnector.getReadConnection()) {
             if (conn == null) {
                 System.err.println("Could not obtain a database connection.");
                 return results;
             }
 
-            ps = conn.prepareStatement(sql);
-            // Use pincode as substring match against the stored address
-            ps.setString(1, "%" + pincode.toLowerCase() + "%");
-
-            rs = ps.executeQuery();
-            while (rs.next()) {
-        String name = rs.getString("atm_name");
-        String addr = rs.getString("atm_address");
-        String cash = rs.getString("cash_status");
-        String dep = rs.getString("deposit_status");
-        String pass = rs.getString("passbook_status");
-
-        String cashStr = (cash != null && !cash.isBlank()) ? cash : "Unknown";
-        String depositStr = (dep != null && (dep.equalsIgnoreCase("yes") || dep.equalsIgnoreCase("available"))) ? "Yes" : "No";
-        String passbookStr = (pass != null && (pass.equalsIgnoreCase("yes") || pass.equalsIgnoreCase("available"))) ? "Yes" : "No";
-
-        String entry = name + " - " + addr + "\n\t> Cash: " + cashStr
-            + " | Deposit: " + depositStr + " | Passbook: " + passbookStr;
+            try (PreparedStatement ps = conn.prepareStatement(SQL)) {
+                ps.setString(1, AtmService.normalizePincode(pincode));
+                ps.setInt(2, AtmStatus.WORKING.getCode());
+                ps.setInt(3, AtmStatus.AVAILABLE.getCode());
 
-                results.add(entry);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        results.add(AtmRows.location(rs, 1, AtmRows.report(rs, 5)));
+                    }
+                }
             }
-
         } catch (SQLException e) {
             System.err.println("SQL error while finding ATMs:");
             e.printStackTrace();
-        } finally {
-            if (rs != null) {
-                try { rs.close(); } catch (SQLException ignore) {}
-            }
-            if (ps != null) {
-                try { ps.close(); } catch (SQLException ignore) {}
-            }
-            if (conn != null) {
-                try { conn.close(); } catch (SQLException ignore) {}
-            }
         }
 
         return results;
     }
 
+    /**
+     * One display entry: name, address and what the latest report says works.
+     */
+    static String describe(AtmLocation atm) {
+        AtmReport report = atm.getLatestReport();
+        return atm.getName() + " - " + atm.getAddress() + "\n\t> Cash: " + report.getCashStatus().name()
+                + " | Deposit: " + (report.getDepositStatus().isPositive() ? "Yes" : "No")
+                + " | Passbook: " + (report.getPassbookStatus().isPositive() ? "Yes" : "No");
+    }
+
     // Small convenience main to demonstrate usage (optional).
     public static void main(String[] args) {
         String pincode = args.length > 0 ? args[0] : "600001";
         double amount = args.length > 1 ? Double.parseDouble(args[1]) : 1000.0;
 
         AtmFinder finder = new AtmFinder();
-        List<String> atms = finder.findAvailableAtms(pincode, amount);
+        List<AtmLocation> atms = finder.findAvailableAtms(pincode, amount);
 
         if (atms.isEmpty()) {
             System.out.println("No ATMs found for pincode=" + pincode + " with amount=" + amount);
         } else {
-            atms.forEach(System.out::println);
+            atms.forEach(atm -> System.out.println(describe(atm)));
         }
     }
 }
@@ -0,0 +1,313 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory spatial index over the ATM catalog for nearest-ATM searches.
+ *
+ * Catalogued ATMs with coordinates are bucketed into a fixed lat/lon grid (cellDegrees
+ * per side, 0.05 degrees is roughly 5.5 km). A query only scans the cells overlapping the
+ * search radius, so lookups never touch MySQL or Gemini.
+ *
+ * The grid and the latest status per ATM are refreshed incrementally from the DB on a
+ * background thread (rows whose last_seen / report_timestamp moved past the previous
+ * cursor), with an occasional full rebuild to drop ATMs that left the catalog. New
+ * reports are also applied directly from ReportWriter via onReportsWritten().
+ *
+ * The grid does not wrap around the antimeridian; ATMs near longitude 180 may be missed
+ * by searches from the other side.
+ */
+public class AtmGeoIndex {
+
+    private static final double EARTH_RADIUS_METERS = 6_371_008.8;
+    private static final double METERS_PER_DEGREE_LAT = 111_320.0;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final double cellDegrees;
+
+    // Only touched by the refresher thread.
+    private final Map<String, GeoEntry> byHash = new HashMap<>();
+    private Timestamp locationCursor;
+    private Timestamp statusCursor;
+
+    // Published to readers.
+    private volatile Map<Long, GeoEntry[]> grid = Collections.emptyMap();
+    private final Map<String, AtmReport> latest = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService refresher;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookupNanosTotal = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private volatile long lastRefreshMillis;
+
+    public AtmGeoIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+    }
+
+    /**
+     * Start the background refresher: a full load right away, incremental refreshes every
+     * refreshSeconds and a full rebuild every rebuildMinutes.
+     */
+    public synchronized void start(long refreshSeconds, long rebuildMinutes) {
+        if (refresher != null) return;
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "geo-index-refresher");
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.execute(this::rebuildSafely);
+        refresher.scheduleWithFixedDelay(this::refreshSafely, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        refresher.scheduleWithFixedDelay(this::rebuildSafely, rebuildMinutes, rebuildMinutes, TimeUnit.MINUTES);
+    }
+
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * True once the index has been loaded from the DB at least once.
+     */
+    public boolean isLoaded() {
+        return refreshes.get() > 0;
+    }
+
+    /**
+     * Apply freshly written reports so searches see them without waiting for a refresh.
+     */
+    public void onReportsWritten(List<AtmLocation> written) {
+        for (AtmLocation w : written) {
+            putLatest(hashKey(w.getName(), w.getAddress()), w.getLatestReport());
+        }
+    }
+
+    /**
+     * Up to k catalogued ATMs within radiusMeters of (lat, lon), nearest first, each with
+     * its latest known report.
+     */
+    public List<NearbyAtm> nearest(double lat, double lon, double radiusMeters, int k) {
+        long start = System.nanoTime();
+        Map<Long, GeoEntry[]> g = grid;
+
+        double latSpan = radiusMeters / METERS_PER_DEGREE_LAT;
+        double lonSpan = latSpan / Math.max(Math.cos(Math.toRadians(lat)), 0.01);
+        long minRow = cellIndex(lat - latSpan), maxRow = cellIndex(lat + latSpan);
+        long minCol = cellIndex(lon - lonSpan), maxCol = cellIndex(lon + lonSpan);
+
+        // Max-heap on distance holding the best k so far.
+        PriorityQueue<Candidate> best = new PriorityQueue<>(Comparator.comparingDouble((Candidate c) -> c.distance).reversed());
+        for (long row = minRow; row <= maxRow; row++) {
+            for (long col = minCol; col <= maxCol; col++) {
+                GeoEntry[] cell = g.get(cellKey(row, col));
+                if (cell == null) continue;
+                for (GeoEntry e : cell) {
+                    double d = distanceMeters(lat, lon, e.lat, e.lon);
+                    if (d > radiusMeters) continue;
+                    if (best.size() < k) {
+                        best.add(new Candidate(e, d));
+                    } else if (d < best.peek().distance) {
+                        best.poll();
+                        best.add(new Candidate(e, d));
+                    }
+                }
+            }
+        }
+
+        List<Candidate> sorted = new ArrayList<>(best);
+        sorted.sort(Comparator.comparingDouble(c -> c.distance));
+        List<NearbyAtm> out = new ArrayList<>(sorted.size());
+        for (Candidate c : sorted) {
+            out.add(new NearbyAtm(c.entry.location, c.distance, latest.get(c.entry.hash)));
+        }
+        lookups.incrementAndGet();
+        lookupNanosTotal.addAndGet(System.nanoTime() - start);
+        return out;
+    }
+
+    /**
+     * Latest known report of the ATM with the given hashKey(), or null.
+     */
+    public AtmReport latestReport(String hash) {
+        return latest.get(hash);
+    }
+
+    private void refreshSafely() {
+        try {
+            if (loadLocations(false)) publishGrid();
+            loadStatuses();
+            markRefreshed();
+        } catch (SQLException | RuntimeException e) {
+            Log.error("geo_index.refresh_failed", e);
+        }
+    }
+
+    private void rebuildSafely() {
+        try {
+            loadLocations(true);
+            publishGrid();
+            loadStatuses();
+            markRefreshed();
+        } catch (SQLException | RuntimeException e) {
+            Log.error("geo_index.rebuild_failed", e);
+        }
+    }
+
+    private void markRefreshed() {
+        refreshes.incrementAndGet();
+        lastRefreshMillis = System.currentTimeMillis();
+    }
+
+    /** Returns true if any location was added or changed. */
+    private boolean loadLocations(boolean full) throws SQLException {
+        String sql = "SELECT location_hash, atm_name, atm_address, latitude, longitude, last_seen FROM atm_locations "
+                + "WHERE latitude IS NOT NULL AND longitude IS NOT NULL"
+                + (full ? "" : " AND last_seen >= ?");
+        try (Connection conn = DatabaseConnector.getReadConnection()) {
+            if (conn == null) throw new SQLException("No DB connection");
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                if (!full) ps.setTimestamp(1, locationCursor != null ? locationCursor : new Timestamp(0));
+                try (ResultSet rs = ps.executeQuery()) {
+                    Map<String, GeoEntry> target = full ? new HashMap<>() : byHash;
+                    boolean changed = full;
+                    Timestamp cursor = locationCursor;
+                    while (rs.next()) {
+                        String hash = HEX.formatHex(rs.getBytes(1));
+                        AtmLocation loc = AtmRows.location(rs, 2, null);
+                        GeoEntry prev = target.put(hash, new GeoEntry(hash, loc));
+                        if (prev == null || prev.lat != loc.getLatitude() || prev.lon != loc.getLongitude()) changed = true;
+                        Timestamp seen = rs.getTimestamp(6);
+                        if (seen != null && (cursor == null || seen.after(cursor))) cursor = seen;
+                    }
+                    if (full) {
+                        byHash.clear();
+                        byHash.putAll(target);
+                    }
+                    locationCursor = cursor;
+                    return changed;
+                }
+            }
+        }
+    }
+
+    private void loadStatuses() throws SQLException {
+        String sql = "SELECT location_hash, cash_status, deposit_status, passbook_status, report_timestamp, confirmations "
+                + "FROM atm_latest_status WHERE report_timestamp >= ?";
+        try (Connection conn = DatabaseConnector.getReadConnection()) {
+            if (conn == null) throw new SQLException("No DB connection");
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setTimestamp(1, statusCursor != null ? statusCursor : new Timestamp(0));
+                try (ResultSet rs = ps.executeQuery()) {
+                    Timestamp cursor = statusCursor;
+                    while (rs.next()) {
+                        AtmReport report = AtmRows.report(rs, 2);
+                        putLatest(HEX.formatHex(rs.getBytes(1)), report);
+                        Timestamp ts = report.getReportTimestamp();
+                        if (ts != null && (cursor == null || ts.after(cursor))) cursor = ts;
+                    }
+                    statusCursor = cursor;
+                }
+            }
+        }
+    }
+
+    private void putLatest(String hash, AtmReport report) {
+        latest.merge(hash, report, (old, neu) ->
+                old.getReportTimestamp() != null && neu.getReportTimestamp() != null
+                        && old.getReportTimestamp().after(neu.getReportTimestamp()) ? old : neu);
+    }
+
+    private void publishGrid() {
+        Map<Long, List<GeoEntry>> cells = new HashMap<>();
+        for (GeoEntry e : byHash.values()) {
+            cells.computeIfAbsent(cellKey(cellIndex(e.lat), cellIndex(e.lon)), x -> new ArrayList<>()).add(e);
+        }
+        Map<Long, GeoEntry[]> g = new HashMap<>(cells.size() * 2);
+        for (Map.Entry<Long, List<GeoEntry>> c : cells.entrySet()) {
+            g.put(c.getKey(), c.getValue().toArray(new GeoEntry[0]));
+        }
+        grid = g;
+    }
+
+    private long cellIndex(double degrees) {
+        return (long) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long cellKey(long row, long col) {
+        return (row << 32) ^ (col & 0xffffffffL);
+    }
+
+    static String hashKey(String name, String address) {
+        return HEX.formatHex(AtmCatalog.locationHash(name, address));
+    }
+
+    /**
+     * Great-circle distance in meters (haversine).
+     */
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        Map<Long, GeoEntry[]> g = grid;
+        int size = 0;
+        for (GeoEntry[] cell : g.values()) size += cell.length;
+        long n = lookups.get();
+        m.put("atms", size);
+        m.put("cells", g.size());
+        m.put("statuses", latest.size());
+        m.put("cellDegrees", cellDegrees);
+        m.put("lookups", n);
+        m.put("lookupMicrosAvg", n == 0 ? 0.0 : lookupNanosTotal.get() / 1000.0 / n);
+        m.put("refreshes", refreshes.get());
+        m.put("lastRefreshMillis", lastRefreshMillis);
+        return m;
+    }
+
+    private static final class GeoEntry {
+        final String hash;
+        final AtmLocation location;
+        final double lat;
+        final double lon;
+
+        GeoEntry(String hash, AtmLocation location) {
+            this.hash = hash;
+            this.location = location;
+            this.lat = location.getLatitude();
+            this.lon = location.getLongitude();
+        }
+    }
+
+    private static final class Candidate {
+        final GeoEntry entry;
+        final double distance;
+
+        Candidate(GeoEntry entry, double distance) {
+            this.entry = entry;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.function.Consumer;
+
+/**
+ * Incremental parser for Gemini's "Name :: Address :: Latitude, Longitude" lines.
+ *
+ * Text can be fed in arbitrary chunks as it is generated; every complete line is parsed
+ * as soon as its newline arrives and handed to the sink, and finish() parses a trailing
+ * line without a newline. Lines without a "::" separator are skipped, the coordinates
+ * part is optional. Parsing uses indexOf() only, no regexes or split arrays.
+ *
+ * Not thread-safe; feed one response from one thread (or sequential callbacks).
+ */
+public class AtmLineParser {
+
+    private static final String SEPARATOR = "::";
+
+    private final Consumer<AtmLocation> sink;
+    private final StringBuilder pending = new StringBuilder();
+    private int parsed;
+
+    public AtmLineParser(Consumer<AtmLocation> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Append a chunk of generated text and emit every line it completes.
+     */
+    public void accept(CharSequence chunk) {
+        int start = 0;
+        for (int i = 0; i < chunk.length(); i++) {
+            if (chunk.charAt(i) != '\n') continue;
+            if (pending.length() > 0) {
+                pending.append(chunk, start, i);
+                parseLine(pending);
+                pending.setLength(0);
+            } else {
+                parseLine(chunk.subSequence(start, i));
+            }
+            start = i + 1;
+        }
+        pending.append(chunk, start, chunk.length());
+    }
+
+    /**
+     * Parse the last line if the text did not end with a newline.
+     */
+    public void finish() {
+        if (pending.length() > 0) {
+            parseLine(pending);
+            pending.setLength(0);
+        }
+    }
+
+    /**
+     * Number of locations emitted so far.
+     */
+    public int parsedCount() {
+        return parsed;
+    }
+
+    private void parseLine(CharSequence line) {
+        String s = line.toString();
+        int first = s.indexOf(SEPARATOR);
+        if (first < 0) return;
+        int second = s.indexOf(SEPARATOR, first + SEPARATOR.length());
+        String name = s.substring(0, first).trim();
+        String address = (second < 0 ? s.substring(first + SEPARATOR.length()) : s.substring(first + SEPARATOR.length(), second)).trim();
+        double[] coords = second < 0 ? null : parseCoordinates(s, second + SEPARATOR.length());
+        parsed++;
+        sink.accept(coords != null
+                ? new AtmLocation(name, address, coords[0], coords[1], null)
+                : new AtmLocation(name, address, null));
+    }
+
+    /**
+     * Parse "lat, lon" starting at from into {lat, lon}, or null if it is not a valid
+     * coordinate pair.
+     */
+    static double[] parseCoordinates(String text, int from) {
+        int comma = text.indexOf(',', from);
+        if (comma < 0 || text.indexOf(',', comma + 1) >= 0) return null;
+        try {
+            double lat = Double.parseDouble(text.substring(from, comma).trim());
+            double lon = Double.parseDouble(text.substring(comma + 1).trim());
+            if (lat < -90 || lat > 90 || lon < -180 || lon > 180) return null;
+            return new double[]{lat, lon};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -1,18 +1,38 @@
 /**
  * Represents an ATM location with its address and the latest local report (may be null).
+ * Coordinates are optional and null when Gemini did not provide them.
  */
 public class AtmLocation {
     private final String name;
     private final String address;
+    private final Double latitude;
+    private final Double longitude;
     private final AtmReport latestReport;
 
     public AtmLocation(String name, String address, AtmReport latestReport) {
+        this(name, address, null, null, latestReport);
+    }
+
+    public AtmLocation(String name, String address, Double latitude, Double longitude, AtmReport latestReport) {
         this.name = name;
         this.address = address;
+        this.latitude = latitude;
+        this.longitude = longitude;
         this.latestReport = latestReport;
     }
 
     public String getName() { return name; }
     public String getAddress() { return address; }
+    public Double getLatitude() { return latitude; }
+    public Double getLongitude() { return longitude; }
     public AtmReport getLatestReport() { return latestReport; }
+
+    public boolean hasCoordinates() { return latitude != null && longitude != null; }
+
+    /**
+     * Copy of this location carrying the given report.
+     */
+    public AtmLocation withReport(AtmReport report) {
+        return new AtmLocation(name, address, latitude, longitude, report);
+    }
 }
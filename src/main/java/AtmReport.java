@@ -2,22 +2,30 @@ import java.sql.Timestamp;
 
 /**
  * Simple data holder for the latest ATM report.
+ * confirmations counts the identical reports coalesced into it (at least 1).
  */
 public class AtmReport {
-    private final String cashStatus;
-    private final String depositStatus;
-    private final String passbookStatus;
+    private final AtmStatus cashStatus;
+    private final AtmStatus depositStatus;
+    private final AtmStatus passbookStatus;
     private final Timestamp reportTimestamp;
+    private final int confirmations;
 
-    public AtmReport(String cashStatus, String depositStatus, String passbookStatus, Timestamp reportTimestamp) {
+    public AtmReport(AtmStatus cashStatus, AtmStatus depositStatus, AtmStatus passbookStatus, Timestamp reportTimestamp) {
+        this(cashStatus, depositStatus, passbookStatus, reportTimestamp, 1);
+    }
+
+    public AtmReport(AtmStatus cashStatus, AtmStatus depositStatus, AtmStatus passbookStatus, Timestamp reportTimestamp, int confirmations) {
         this.cashStatus = cashStatus;
         this.depositStatus = depositStatus;
         this.passbookStatus = passbookStatus;
         this.reportTimestamp = reportTimestamp;
+        this.confirmations = confirmations;
     }
 
-    public String getCashStatus() { return cashStatus; }
-    public String getDepositStatus() { return depositStatus; }
-    public String getPassbookStatus() { return passbookStatus; }
+    public AtmStatus getCashStatus() { return cashStatus; }
+    public AtmStatus getDepositStatus() { return depositStatus; }
+    public AtmStatus getPassbookStatus() { return passbookStatus; }
     public Timestamp getReportTimestamp() { return reportTimestamp; }
+    public int getConfirmations() { return confirmations; }
 }
@@ -0,0 +1,44 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * ResultSet mappers shared by the DB read paths.
+ *
+ * Columns are read by position: each mapper is given the index of its first column and
+ * the query selects the columns in the order documented on the mapper, so no column name
+ * is resolved per row. Status codes map through AtmStatus.fromCode(), a table lookup that
+ * returns the shared enum constants, and rows become the same AtmLocation/AtmReport
+ * objects the rest of the service passes around; turning them into text is left to
+ * whoever presents them.
+ */
+final class AtmRows {
+
+    private AtmRows() {}
+
+    /**
+     * atm_name, atm_address, latitude, longitude from column col on, with report attached.
+     * Coordinates are null unless both are set.
+     */
+    static AtmLocation location(ResultSet rs, int col, AtmReport report) throws SQLException {
+        String name = rs.getString(col);
+        String address = rs.getString(col + 1);
+        double lat = rs.getDouble(col + 2);
+        if (rs.wasNull()) return new AtmLocation(name, address, report);
+        double lon = rs.getDouble(col + 3);
+        if (rs.wasNull()) return new AtmLocation(name, address, report);
+        return new AtmLocation(name, address, lat, lon, report);
+    }
+
+    /**
+     * cash_status, deposit_status, passbook_status, report_timestamp, confirmations from
+     * column col on.
+     */
+    static AtmReport report(ResultSet rs, int col) throws SQLException {
+        return new AtmReport(
+                AtmStatus.fromCode(rs.getInt(col)),
+                AtmStatus.fromCode(rs.getInt(col + 1)),
+                AtmStatus.fromCode(rs.getInt(col + 2)),
+                rs.getTimestamp(col + 3),
+                rs.getInt(col + 4));
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * An ATM returned by a free-text search, with its relevance score (higher is better).
+ * Coordinates are null when the catalog has none.
+ */
+public class AtmSearchHit {
+    private final String name;
+    private final String address;
+    private final String pincode;
+    private final Double latitude;
+    private final Double longitude;
+    private final double score;
+    private final AtmReport latestReport;
+
+    public AtmSearchHit(AtmLocation location, String pincode, double score, AtmReport latestReport) {
+        this.name = location.getName();
+        this.address = location.getAddress();
+        this.pincode = pincode;
+        this.latitude = location.getLatitude();
+        this.longitude = location.getLongitude();
+        this.score = score;
+        this.latestReport = latestReport;
+    }
+
+    private AtmSearchHit(AtmSearchHit hit, AtmReport latestReport) {
+        this.name = hit.name;
+        this.address = hit.address;
+        this.pincode = hit.pincode;
+        this.latitude = hit.latitude;
+        this.longitude = hit.longitude;
+        this.score = hit.score;
+        this.latestReport = latestReport;
+    }
+
+    public String getName() { return name; }
+    public String getAddress() { return address; }
+    public String getPincode() { return pincode; }
+    public Double getLatitude() { return latitude; }
+    public Double getLongitude() { return longitude; }
+    public double getScore() { return score; }
+    public AtmReport getLatestReport() { return latestReport; }
+
+    /**
+     * Copy of this hit carrying the given report.
+     */
+    public AtmSearchHit withReport(AtmReport report) {
+        return new AtmSearchHit(this, report);
+    }
+}
@@ -0,0 +1,553 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory trigram index over catalogued ATM names and addresses for free-text search,
+ * so no lookup has to scan atm_locations with LIKE '%...%'.
+ *
+ * Text is folded to lower-case words of letters and digits. Every word is padded with two
+ * leading spaces and one trailing space and cut into trigrams ("  a", " an", "ann", ...,
+ * "ai "), and each trigram keeps a sorted posting list of the catalog rows containing it.
+ * A query is cut the same way except that its last word gets no trailing space, so a
+ * query being typed ("anna sal") already matches the word it is the start of.
+ *
+ * A row matches when it holds at least minSimilarity of the query's trigrams. A typo
+ * costs a word at most three trigrams, so misspelt queries still match. Rows holding all
+ * of them are found first by intersecting the posting lists, which is bounded by the
+ * shortest list and usually fills the result. Otherwise, by pigeonhole, a match must
+ * appear in one of the (query trigrams - required + 1) shortest lists, so only those admit
+ * candidates and the longer, common ones merely add to their counts. With a pincode the
+ * rows listed under it are checked directly when there are fewer of them. Matches rank
+ * by the share of query trigrams they contain, then by the query occurring as a word
+ * prefix (+0.5) or a substring (+0.25) of the row, then by shorter rows. The same ATM listed under several pincodes is returned once.
+ *
+ * Like AtmGeoIndex the index is loaded from atm_locations on a background thread: a full
+ * build at start and every rebuildMinutes, and in between incremental refreshes of the
+ * rows whose last_seen moved past the previous cursor. Those go into a small second
+ * segment that overrides the same rows of the full one; rows deleted from the catalog
+ * disappear with the next rebuild.
+ */
+public class AtmSearchIndex {
+
+    private static final long[] NO_TRIGRAMS = new long[0];
+    private static final int[] NO_DOCS = new int[0];
+    // Longer queries are cut, which also keeps per-row trigram counts far below Short.MAX_VALUE.
+    private static final int MAX_QUERY_CHARS = 64;
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final double minSimilarity;
+
+    // Published to readers.
+    private volatile State state = new State(Segment.build(List.of()), Segment.build(List.of()));
+
+    // Only touched by the refresher thread.
+    private final Map<Long, Row> pending = new LinkedHashMap<>();
+    private Timestamp cursor;
+
+    private ScheduledExecutorService refresher;
+
+    private final LatencyHistogram searchTime = Metrics.timer("atm_search_seconds", "Free-text ATM searches served from the trigram index.", "");
+    private final AtomicLong refreshes = new AtomicLong();
+    private volatile long lastRefreshMillis;
+    private volatile long lastBuildMillis;
+
+    public AtmSearchIndex(double minSimilarity) {
+        this.minSimilarity = Math.min(1.0, Math.max(0.01, minSimilarity));
+        Metrics.gauge("atm_search_rows", "Catalog rows in the last full build of the search index.", "", () -> state.main.size());
+    }
+
+    /**
+     * Start the background loader: a full build right away, incremental refreshes every
+     * refreshSeconds and a full rebuild every rebuildMinutes.
+     */
+    public synchronized void start(long refreshSeconds, long rebuildMinutes) {
+        if (refresher != null) return;
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "search-index-refresher");
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.execute(this::rebuildSafely);
+        refresher.scheduleWithFixedDelay(this::refreshSafely, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        refresher.scheduleWithFixedDelay(this::rebuildSafely, rebuildMinutes, rebuildMinutes, TimeUnit.MINUTES);
+    }
+
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * True once the index has been loaded from the DB at least once.
+     */
+    public boolean isLoaded() {
+        return refreshes.get() > 0;
+    }
+
+    /**
+     * Up to limit catalogued ATMs matching query, best first, optionally only those listed
+     * under pincode. Hits carry no report.
+     */
+    public List<AtmSearchHit> search(String query, String pincode, int limit) {
+        long start = System.nanoTime();
+        String q = normalize(query);
+        if (q.length() > MAX_QUERY_CHARS) q = q.substring(0, MAX_QUERY_CHARS).trim();
+        long[] grams = trigrams(q, true);
+        if (grams.length == 0 || limit <= 0) return Collections.emptyList();
+        int required = Math.max(1, (int) Math.ceil(grams.length * minSimilarity));
+
+        // Rank cheaply by trigram share over all matches, then refine a few times limit.
+        State s = state;
+        int keep = Math.max(4 * limit, 40);
+        PriorityQueue<Hit> best = new PriorityQueue<>(WORST_FIRST);
+        collect(s.main, grams, required, pincode, s.delta.keys(), best, keep);
+        collect(s.delta, grams, required, pincode, null, best, keep);
+
+        List<Hit> ranked = new ArrayList<>(best);
+        for (Hit h : ranked) {
+            h.score = h.shared / (double) grams.length + textBonus(q, normalize(text(h.segment.locations[h.doc])));
+        }
+        ranked.sort(BEST_FIRST);
+
+        List<AtmSearchHit> out = new ArrayList<>(Math.min(limit, ranked.size()));
+        Set<String> seen = new HashSet<>();
+        for (Hit h : ranked) {
+            if (out.size() == limit) break;
+            AtmLocation loc = h.segment.locations[h.doc];
+            if (!seen.add(AtmService.locationKey(loc.getName(), loc.getAddress()))) continue;
+            out.add(new AtmSearchHit(loc, h.segment.pincodes[h.doc], Math.round(h.score * 1000) / 1000.0, null));
+        }
+        searchTime.recordNanos(System.nanoTime() - start);
+        return out;
+    }
+
+    private static void collect(Segment seg, long[] grams, int required, String pincode, Set<Long> shadowed,
+                                PriorityQueue<Hit> best, int keep) {
+        if (seg.size() == 0) return;
+        int[][] lists = new int[grams.length][];
+        for (int i = 0; i < grams.length; i++) {
+            int[] docs = seg.postings.get(grams[i]);
+            lists[i] = docs != null ? docs : NO_DOCS;
+        }
+        Arrays.sort(lists, Comparator.comparingInt(l -> l.length));
+        int probe = grams.length - required + 1;
+        long probed = 0;
+        for (int i = 0; i < probe; i++) probed += lists[i].length;
+
+        // A pincode usually lists far fewer ATMs than the posting lists hold; check those directly.
+        if (pincode != null) {
+            int[] local = seg.byPincode.get(pincode);
+            if (local == null) return;
+            if (local.length <= probed) {
+                for (int doc : local) {
+                    int shared = 0;
+                    for (int i = 0; i < lists.length; i++) {
+                        if (shared + lists.length - i < required) break;
+                        if (Arrays.binarySearch(lists[i], doc) >= 0) shared++;
+                    }
+                    if (shared >= required) offer(seg, doc, shared, shadowed, best, keep);
+                }
+                return;
+            }
+        }
+
+        // Rows holding every query trigram first: a merge of the posting lists, cheap because
+        // it is bounded by the shortest one. Usually these already fill the heap.
+        int[] all = Arrays.copyOf(lists[0], lists[0].length);
+        int allCount = all.length;
+        for (int i = 1; i < lists.length && allCount > 0; i++) allCount = retain(all, allCount, lists[i]);
+        for (int i = 0; i < allCount; i++) {
+            if (pincode == null || pincode.equals(seg.pincodes[all[i]])) offer(seg, all[i], lists.length, shadowed, best, keep);
+        }
+        if (required == lists.length || (best.size() >= keep && best.peek().shared == lists.length)) return;
+
+        // Otherwise count: only the probe lists admit candidates, the longer lists just add
+        // to the counts of candidates already seen.
+        Scratch scratch = SCRATCH.get();
+        short[] counts = scratch.counts(seg.size());
+        scratch.touched = 0;
+        for (int i = 0; i < probe; i++) {
+            for (int doc : lists[i]) {
+                if (counts[doc]++ == 0) scratch.touch(doc);
+            }
+        }
+        int[] touched = scratch.docs;
+        for (int i = probe; i < lists.length; i++) {
+            int[] list = lists[i];
+            if ((long) scratch.touched * 16 < list.length) {
+                for (int t = 0; t < scratch.touched; t++) {
+                    if (Arrays.binarySearch(list, touched[t]) >= 0) counts[touched[t]]++;
+                }
+            } else {
+                for (int doc : list) {
+                    if (counts[doc] != 0) counts[doc]++;
+                }
+            }
+        }
+        for (int t = 0; t < scratch.touched; t++) {
+            int doc = touched[t];
+            int shared = counts[doc];
+            counts[doc] = 0;
+            // Rows with every trigram were offered above.
+            if (shared < required || shared == lists.length) continue;
+            if (pincode != null && !pincode.equals(seg.pincodes[doc])) continue;
+            offer(seg, doc, shared, shadowed, best, keep);
+        }
+    }
+
+    private static void offer(Segment seg, int doc, int shared, Set<Long> shadowed, PriorityQueue<Hit> best, int keep) {
+        if (best.size() >= keep && !isBetter(shared, seg.trigramCounts[doc], best.peek())) return;
+        if (shadowed != null && shadowed.contains(seg.keys[doc])) return;
+        best.add(new Hit(seg, doc, shared));
+        if (best.size() > keep) best.poll();
+    }
+
+    /**
+     * Keep the first count docs that also occur in list, in place; returns how many remain.
+     * Both are sorted. Galloping search, so a short docs against a long list stays cheap.
+     */
+    private static int retain(int[] docs, int count, int[] list) {
+        int kept = 0;
+        int from = 0;
+        for (int i = 0; i < count && from < list.length; i++) {
+            int doc = docs[i];
+            int step = 1;
+            int hi = from;
+            while (hi < list.length && list[hi] < doc) {
+                from = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            int at = Arrays.binarySearch(list, from, Math.min(hi + 1, list.length), doc);
+            if (at >= 0) {
+                docs[kept++] = doc;
+                from = at + 1;
+            } else {
+                from = -at - 1;
+            }
+        }
+        return kept;
+    }
+
+    private static boolean isBetter(int shared, int trigramCount, Hit than) {
+        return shared > than.shared || (shared == than.shared && trigramCount < than.segment.trigramCounts[than.doc]);
+    }
+
+    private static double textBonus(String query, String text) {
+        if (text.startsWith(query) || text.contains(" " + query)) return 0.5;
+        return text.contains(query) ? 0.25 : 0.0;
+    }
+
+    private void refreshSafely() {
+        try {
+            if (loadRows(false)) publish(state.main);
+            markRefreshed();
+        } catch (SQLException | RuntimeException e) {
+            Log.error("search_index.refresh_failed", e);
+        }
+    }
+
+    private void rebuildSafely() {
+        try {
+            loadRows(true);
+            markRefreshed();
+        } catch (SQLException | RuntimeException e) {
+            Log.error("search_index.rebuild_failed", e);
+        }
+    }
+
+    private void markRefreshed() {
+        refreshes.incrementAndGet();
+        lastRefreshMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Load all rows into a new full segment, or the rows seen since the cursor into
+     * pending. Returns true if pending changed.
+     */
+    private boolean loadRows(boolean full) throws SQLException {
+        // Columns 1-4 in AtmRows.location() order.
+        String sql = "SELECT atm_name, atm_address, latitude, longitude, pincode, location_hash, last_seen FROM atm_locations"
+                + (full ? "" : " WHERE last_seen >= ?");
+        List<Row> rows = new ArrayList<>();
+        Timestamp newCursor = full ? null : cursor;
+        try (Connection conn = DatabaseConnector.getReadConnection()) {
+            if (conn == null) throw new SQLException("No DB connection");
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                if (!full) ps.setTimestamp(1, cursor != null ? cursor : new Timestamp(0));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new Row(rs.getString(5), AtmRows.location(rs, 1, null), rs.getBytes(6)));
+                        Timestamp seen = rs.getTimestamp(7);
+                        if (seen != null && (newCursor == null || seen.after(newCursor))) newCursor = seen;
+                    }
+                }
+            }
+        }
+        cursor = newCursor;
+        if (full) {
+            long start = System.nanoTime();
+            Segment main = Segment.build(rows);
+            pending.clear();
+            publish(main);
+            lastBuildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            return false;
+        }
+        for (Row r : rows) pending.put(r.key, r);
+        return !rows.isEmpty();
+    }
+
+    /**
+     * Replace the whole index with rows; used by the loader and by benchmarks.
+     */
+    void replaceAll(List<Row> rows) {
+        pending.clear();
+        publish(Segment.build(rows));
+    }
+
+    private void publish(Segment main) {
+        state = new State(main, Segment.build(new ArrayList<>(pending.values())));
+    }
+
+    public Map<String, Object> snapshot() {
+        State s = state;
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("rows", s.main.size());
+        m.put("deltaRows", s.delta.size());
+        m.put("trigrams", s.main.postings.size());
+        m.put("minSimilarity", minSimilarity);
+        m.put("lastBuildMillis", lastBuildMillis);
+        m.put("lookups", searchTime.count());
+        m.put("lookupMillisP50", searchTime.quantileSeconds(0.5) * 1000);
+        m.put("lookupMillisP99", searchTime.quantileSeconds(0.99) * 1000);
+        m.put("refreshes", refreshes.get());
+        m.put("lastRefreshMillis", lastRefreshMillis);
+        return m;
+    }
+
+    private static String text(AtmLocation loc) {
+        return loc.getName() + ' ' + loc.getAddress();
+    }
+
+    /**
+     * Lower-case letters and digits, runs of anything else collapsed to one space.
+     */
+    static String normalize(String s) {
+        if (s == null) return "";
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = true;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            } else if (!space) {
+                sb.append(' ');
+                space = true;
+            }
+        }
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ') sb.setLength(sb.length() - 1);
+        return sb.toString();
+    }
+
+    /**
+     * Distinct trigrams of normalized text, sorted. With prefix the last word gets no
+     * trailing-space trigram.
+     */
+    static long[] trigrams(String normalized, boolean prefix) {
+        int len = normalized.length();
+        if (len == 0) return NO_TRIGRAMS;
+        long[] out = new long[2 * len + 2];
+        int n = 0;
+        int start = 0;
+        while (start < len) {
+            int end = normalized.indexOf(' ', start);
+            if (end < 0) end = len;
+            char a = ' ', b = ' ';
+            for (int i = start; i < end; i++) {
+                char c = normalized.charAt(i);
+                out[n++] = trigram(a, b, c);
+                a = b;
+                b = c;
+            }
+            if (!prefix || end < len) out[n++] = trigram(a, b, ' ');
+            start = end + 1;
+        }
+        Arrays.sort(out, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || out[i] != out[distinct - 1]) out[distinct++] = out[i];
+        }
+        return Arrays.copyOf(out, distinct);
+    }
+
+    private static long trigram(char a, char b, char c) {
+        return ((long) a << 32) | ((long) b << 16) | c;
+    }
+
+    /**
+     * A catalog row: an ATM listed under a pincode.
+     */
+    static final class Row {
+        final String pincode;
+        final AtmLocation location;
+        final long key;
+
+        Row(String pincode, AtmLocation location, byte[] locationHash) {
+            this.pincode = pincode;
+            this.location = location;
+            long h = 0;
+            for (int i = 0; i < 8; i++) h = (h << 8) | (locationHash[i] & 0xff);
+            this.key = h * 31 + pincode.hashCode();
+        }
+    }
+
+    /**
+     * Immutable rows plus their posting lists; doc ids are indexes into the arrays.
+     */
+    private static final class Segment {
+        final AtmLocation[] locations;
+        final String[] pincodes;
+        final long[] keys;
+        final short[] trigramCounts;
+        final Map<Long, int[]> postings;
+        final Map<String, int[]> byPincode;
+        private Set<Long> keySet;
+
+        private Segment(AtmLocation[] locations, String[] pincodes, long[] keys, short[] trigramCounts,
+                        Map<Long, int[]> postings, Map<String, int[]> byPincode) {
+            this.locations = locations;
+            this.pincodes = pincodes;
+            this.keys = keys;
+            this.trigramCounts = trigramCounts;
+            this.postings = postings;
+            this.byPincode = byPincode;
+        }
+
+        static Segment build(List<Row> rows) {
+            int n = rows.size();
+            AtmLocation[] locations = new AtmLocation[n];
+            String[] pincodes = new String[n];
+            long[] keys = new long[n];
+            short[] trigramCounts = new short[n];
+            Map<String, IntList> pincodeLists = new HashMap<>();
+            Map<Long, IntList> lists = new HashMap<>();
+            for (int doc = 0; doc < n; doc++) {
+                Row r = rows.get(doc);
+                locations[doc] = r.location;
+                IntList local = pincodeLists.computeIfAbsent(r.pincode, p -> new IntList());
+                local.add(doc);
+                // One String per pincode.
+                pincodes[doc] = local.size == 1 ? r.pincode : pincodes[local.items[0]];
+                keys[doc] = r.key;
+                long[] grams = trigrams(normalize(text(r.location)), false);
+                trigramCounts[doc] = (short) Math.min(grams.length, Short.MAX_VALUE);
+                for (long g : grams) lists.computeIfAbsent(g, x -> new IntList()).add(doc);
+            }
+            Map<Long, int[]> postings = new HashMap<>(lists.size() * 4 / 3 + 1);
+            for (Map.Entry<Long, IntList> e : lists.entrySet()) postings.put(e.getKey(), e.getValue().toArray());
+            Map<String, int[]> byPincode = new HashMap<>();
+            for (Map.Entry<String, IntList> e : pincodeLists.entrySet()) byPincode.put(e.getKey(), e.getValue().toArray());
+            return new Segment(locations, pincodes, keys, trigramCounts, postings, byPincode);
+        }
+
+        int size() {
+            return locations.length;
+        }
+
+        // Only built for the delta segment, whose rows shadow the same rows of the main one.
+        synchronized Set<Long> keys() {
+            if (keySet == null) {
+                Set<Long> s = new HashSet<>(keys.length * 4 / 3 + 1);
+                for (long k : keys) s.add(k);
+                keySet = s;
+            }
+            return keySet;
+        }
+    }
+
+    private static final class State {
+        final Segment main;
+        final Segment delta;
+
+        State(Segment main, Segment delta) {
+            this.main = main;
+            this.delta = delta;
+            delta.keys();
+        }
+    }
+
+    private static final Comparator<Hit> WORST_FIRST = (x, y) -> x.shared != y.shared
+            ? Integer.compare(x.shared, y.shared)
+            : Integer.compare(y.segment.trigramCounts[y.doc], x.segment.trigramCounts[x.doc]);
+
+    private static final Comparator<Hit> BEST_FIRST = (x, y) -> x.score != y.score
+            ? Double.compare(y.score, x.score)
+            : Integer.compare(x.segment.trigramCounts[x.doc], y.segment.trigramCounts[y.doc]);
+
+    private static final class Hit {
+        final Segment segment;
+        final int doc;
+        final int shared;
+        double score;
+
+        Hit(Segment segment, int doc, int shared) {
+            this.segment = segment;
+            this.doc = doc;
+            this.shared = shared;
+        }
+    }
+
+    private static final class IntList {
+        int[] items = new int[4];
+        int size;
+
+        void add(int v) {
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = v;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(items, size);
+        }
+    }
+
+    /**
+     * Per-thread candidate counters, reused across searches and reset after each segment.
+     */
+    private static final class Scratch {
+        short[] counts = new short[0];
+        int[] docs = new int[256];
+        int touched;
+
+        short[] counts(int size) {
+            if (counts.length < size) counts = new short[size];
+            return counts;
+        }
+
+        void touch(int doc) {
+            if (touched == docs.length) docs = Arrays.copyOf(docs, touched * 2);
+            docs[touched++] = doc;
+        }
+    }
+}
@@ -1,156 +1,703 @@
-import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Service to find ATMs using the Gemini API and to read/submit reports to local DB.
  *
- * Note: This class requires OkHttp and org.json on the classpath.
+ * Note: This class requires OkHttp and Gson on the classpath.
  */
 public class AtmService {
 
-    // Read API key from environment variable to avoid committing secrets.
-    private static final String API_KEY = System.getProperty("GEMINI_API_KEY", System.getenv("GEMINI_API_KEY"));
+    private final GeminiClient gemini = GeminiClient.fromConfig("atm_lookup", HttpClients.shared());
 
-    private final OkHttpClient http = new OkHttpClient.Builder()
-            .readTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-            .build();
-    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    // Upper bound on ATMs bound into one latest-report query.
+    private static final int MAX_KEYS_PER_QUERY = 200;
+
+    // Parsed "Name :: Address" lists per normalized pincode. Reports are never cached here;
+    // they are merged in fresh from the DB on every lookup.
+    private final TtlCache<String, List<AtmLocation>> atmListCache = new TtlCache<>(
+            AppConfig.getInt("ATM_CACHE_MAX_PINCODES", 1000),
+            AppConfig.getLong("ATM_CACHE_TTL_SECONDS", 6 * 60 * 60) * 1000L);
+
+    private final AtmCatalog catalog = new AtmCatalog();
+    private final ReportWriter reportWriter = ReportWriter.fromConfig();
+    private final long catalogMaxAgeMillis = AppConfig.getLong("ATM_CATALOG_MAX_AGE_HOURS", 7 * 24) * 60 * 60 * 1000L;
+
+    // Upper bound on how long a lookup waits for Gemini before falling back, and whether
+    // slow lookups are hedged with a second call (see GeminiClient.generate(String, boolean)).
+    private final long lookupTimeoutMillis = AppConfig.getLong("ATM_LOOKUP_TIMEOUT_MS", 10000);
+    private final boolean hedgeLookups = AppConfig.getBoolean("ATM_LOOKUP_HEDGE", false);
+    // Fallback lists are cached only briefly so Gemini is retried soon after it recovers.
+    private final long fallbackTtlMillis = AppConfig.getLong("ATM_CACHE_FALLBACK_TTL_SECONDS", 30) * 1000L;
+    private final LongAdder staleServed = Metrics.counter("atm_lookup_fallback_total", "ATM lists served without Gemini after a failed lookup.", "source=\"stale_cache\"");
+    private final LongAdder catalogServed = Metrics.counter("atm_lookup_fallback_total", "ATM lists served without Gemini after a failed lookup.", "source=\"catalog\"");
+
+    // Coordinate searches are answered from memory; the index follows the catalog and
+    // atm_latest_status in the background and picks up new reports from the writer.
+    private final AtmGeoIndex geoIndex = new AtmGeoIndex(AppConfig.getDouble("GEO_INDEX_CELL_DEGREES", 0.05));
+
+    // Name/address searches are answered from an in-memory trigram index over the catalog.
+    private final AtmSearchIndex searchIndex = new AtmSearchIndex(AppConfig.getDouble("SEARCH_MIN_SIMILARITY", 0.5));
+
+    // Counts lookups per pincode and keeps the hottest ones cached ahead of expiry.
+    private final PincodePrefetcher prefetcher = PincodePrefetcher.fromConfig(new PincodePrefetcher.Target() {
+        @Override
+        public long cacheRemainingMillis(String pincode) {
+            return atmListCache.remainingMillis(pincode);
+        }
+
+        @Override
+        public PincodePrefetcher.Result refresh(String pincode, boolean allowUpstream) {
+            return refreshAtmList(pincode, allowUpstream);
+        }
+
+        @Override
+        public boolean upstreamHasCapacity() {
+            return gemini.hasSpareCapacity();
+        }
+    });
+
+    // Pushes written reports to clients streaming the status of the affected ATMs.
+    private final StatusHub statusHub = StatusHub.fromConfig();
+
+    // Adds monthly ATM_reports partitions ahead of time and archives/drops expired ones.
+    private final ReportRetention retention = ReportRetention.fromConfig();
+
+    // Runs the DB work that follows a Gemini answer (catalog writes, fallback reads, report
+    // lookups of streamed ATMs), so OkHttp's callback threads never wait on JDBC.
+    private final ExecutorService dbExecutor = Executors.newFixedThreadPool(
+            Math.max(1, AppConfig.getInt("ATM_DB_THREADS", 4)), r -> {
+                Thread t = new Thread(r, "atm-db");
+                t.setDaemon(true);
+                return t;
+            });
+
+    public AtmService() {
+        reportWriter.addListener(geoIndex::onReportsWritten);
+        reportWriter.addListener(statusHub::publish);
+        geoIndex.start(AppConfig.getLong("GEO_INDEX_REFRESH_SECONDS", 30),
+                AppConfig.getLong("GEO_INDEX_REBUILD_MINUTES", 60));
+        searchIndex.start(AppConfig.getLong("SEARCH_INDEX_REFRESH_SECONDS", 30),
+                AppConfig.getLong("SEARCH_INDEX_REBUILD_MINUTES", 60));
+        if (AppConfig.getBoolean("REPORT_RETENTION_ENABLED", true)) {
+            retention.start(AppConfig.getLong("REPORT_RETENTION_INTERVAL_HOURS", 6));
+        }
+        if (AppConfig.getBoolean("PREFETCH_ENABLED", true)) {
+            prefetcher.start(AppConfig.getLong("PREFETCH_INTERVAL_SECONDS", 60));
+        }
+    }
 
-    private static final String GEMINI_URL = "https://generativelanguage.googleapis.com/v1beta/models/gemini-pro-latest:generateContent";
-    
     /**
      * Find ATMs near the given pincode by asking Gemini to list ATMs in the requested prompt format.
+     * The ATM list is cached per pincode; the latest report of each ATM is always read from the DB.
      */
     public List<AtmLocation> findAtmsNearPincode(String pincode) {
-        List<AtmLocation> results = new ArrayList<>();
-        try {
-            String prompt = "Please find ATMs near pincode " + pincode + ". Provide a list where each ATM is on a new line, formatted exactly as: Name :: Address";
+        return findAtmsNearPincodeAsync(pincode).join();
+    }
 
-            JSONObject contentPart = new JSONObject();
-            contentPart.put("text", prompt);
+    /**
+     * Non-blocking variant of findAtmsNearPincode. When the ATM list is cached (or in
+     * the catalog) the reports are read on the calling thread; otherwise the future
+     * completes on a dbExecutor thread once Gemini has answered and the reports are read.
+     */
+    public CompletableFuture<List<AtmLocation>> findAtmsNearPincodeAsync(String pincode) {
+        CompletableFuture<List<AtmLocation>> list = findAtmListAsync(pincode);
+        return list.isDone() ? list.thenApply(this::withLatestReports) : list.thenApplyAsync(this::withLatestReports, dbExecutor);
+    }
 
-            JSONArray contentsArray = new JSONArray();
-            contentsArray.put(new JSONObject().put("parts", new JSONArray().put(contentPart)));
+    /**
+     * The cached ATM list for pincode without reports (empty if none are known). Callers
+     * that stream their response attach reports with forEachWithLatestReport() instead of
+     * building the full list with withLatestReports().
+     */
+    public CompletableFuture<List<AtmLocation>> findAtmListAsync(String pincode) {
+        String key = normalizePincode(pincode);
+        prefetcher.recordLookup(key);
+        return atmListCache.getAsync(key, this::loadAtmList)
+                .thenApply(atms -> atms == null ? Collections.<AtmLocation>emptyList() : atms);
+    }
 
-            JSONObject geminiRequestBody = new JSONObject();
-            geminiRequestBody.put("contents", contentsArray);
+    /**
+     * Cache loader: serve the pincode from the DB catalog while it is fresh, otherwise
+     * refresh it from Gemini and write the result back. If Gemini fails, times out or
+     * its circuit breaker is open, stale data is better than nothing: see fallbackAtmList().
+     */
+    private CompletableFuture<List<AtmLocation>> loadAtmList(String pincode) {
+        List<AtmLocation> fromCatalog = catalog.findFresh(pincode, catalogMaxAgeMillis);
+        if (fromCatalog != null) return CompletableFuture.completedFuture(fromCatalog);
 
-            RequestBody body = RequestBody.create(geminiRequestBody.toString(), JSON);
-            Request.Builder requestBuilder = new Request.Builder().url(GEMINI_URL).post(body);
-            if (API_KEY != null && !API_KEY.isBlank()) {
-                requestBuilder.addHeader("X-goog-api-key", API_KEY);
-            } else {
-                System.err.println("Warning: GEMINI_API_KEY env var not set. Gemini calls will likely fail unless you provide credentials by another method.");
+        return fetchAtmsFromGemini(pincode).thenApplyAsync(fromGemini -> {
+            if (fromGemini != null) {
+                catalog.save(pincode, fromGemini);
+                return fromGemini;
             }
-            Request request = requestBuilder.build();
+            return fallbackAtmList(pincode);
+        }, dbExecutor);
+    }
 
-            try (Response resp = http.newCall(request).execute()) {
-                if (!resp.isSuccessful()) {
-                    System.err.println("Gemini HTTP error: " + resp.code());
-                    return results;
-                }
-                String respBody = resp.body() != null ? resp.body().string() : null;
-                if (respBody == null) return results;
-
-                String generated = parseGeminiGeneratedText(respBody);
-                if (generated == null || generated.isBlank()) return results;
-
-                String[] lines = generated.split("\\r?\\n");
-                for (String line : lines) {
-                    String[] parts = line.split("::", 2);
-                    if (parts.length < 2) continue;
-                    String name = parts[0].trim();
-                    String address = parts[1].trim();
-                    AtmReport latest = getLatestReport(name, address);
-                    results.add(new AtmLocation(name, address, latest));
-                }
+    /**
+     * Prefetch: reload pincode's cached list before it expires, from the catalog if it is
+     * fresh, else from Gemini if allowUpstream. Blocks until done; a failed or skipped
+     * refresh leaves the current entry in place.
+     */
+    private PincodePrefetcher.Result refreshAtmList(String pincode, boolean allowUpstream) {
+        AtomicBoolean calledGemini = new AtomicBoolean();
+        List<AtmLocation> atms = atmListCache.refreshAsync(pincode, key -> {
+            List<AtmLocation> fromCatalog = catalog.findFresh(key, catalogMaxAgeMillis);
+            if (fromCatalog != null) return CompletableFuture.completedFuture(fromCatalog);
+            if (!allowUpstream) return CompletableFuture.completedFuture(null);
+            calledGemini.set(true);
+            return fetchAtmsFromGemini(key).thenApplyAsync(fromGemini -> {
+                if (fromGemini != null) catalog.save(key, fromGemini);
+                return fromGemini;
+            }, dbExecutor);
+        }).join();
+        if (atms == null) return calledGemini.get() ? PincodePrefetcher.Result.FAILED : PincodePrefetcher.Result.NO_BUDGET;
+        return calledGemini.get() ? PincodePrefetcher.Result.GEMINI : PincodePrefetcher.Result.CATALOG;
+    }
+
+    /**
+     * The last list we had for pincode, from the (expired) cache entry or else the DB
+     * catalog regardless of age. It is re-cached for ATM_CACHE_FALLBACK_TTL_SECONDS only.
+     */
+    private List<AtmLocation> fallbackAtmList(String pincode) {
+        List<AtmLocation> atms = atmListCache.getStale(pincode);
+        if (atms != null) {
+            staleServed.increment();
+        } else {
+            atms = catalog.findAny(pincode);
+            if (atms != null) catalogServed.increment();
+        }
+        if (atms != null) atmListCache.put(pincode, atms, fallbackTtlMillis);
+        return atms;
+    }
+
+    /**
+     * Up to k catalogued ATMs within radiusMeters of (lat, lon), nearest first, with their
+     * latest reports. Served entirely from the in-memory geo index.
+     */
+    public List<NearbyAtm> findNearby(double lat, double lon, double radiusMeters, int k) {
+        return geoIndex.nearest(lat, lon, radiusMeters, k);
+    }
+
+    /**
+     * Size, refresh and lookup counters of the in-memory geo index.
+     */
+    public Map<String, Object> geoIndexStats() {
+        return geoIndex.snapshot();
+    }
+
+    /**
+     * Up to limit catalogued ATMs whose name or address matches query, best first and
+     * optionally only those listed under pincode, with their latest reports. Prefixes,
+     * substrings and misspellings match; see AtmSearchIndex. Served entirely from memory.
+     */
+    public List<AtmSearchHit> searchAtms(String query, String pincode, int limit) {
+        List<AtmSearchHit> hits = searchIndex.search(query, pincode != null ? normalizePincode(pincode) : null, limit);
+        List<AtmSearchHit> out = new ArrayList<>(hits.size());
+        for (AtmSearchHit h : hits) {
+            out.add(h.withReport(geoIndex.latestReport(AtmGeoIndex.hashKey(h.getName(), h.getAddress()))));
+        }
+        return out;
+    }
+
+    /**
+     * Size, refresh and lookup counters of the in-memory search index.
+     */
+    public Map<String, Object> searchIndexStats() {
+        return searchIndex.snapshot();
+    }
+
+    /**
+     * Stream status changes of the ATMs listed for pincode to sink, see subscribeStatus().
+     * Completes with null if no ATMs are known for the pincode or too many clients are
+     * subscribed already.
+     */
+    public CompletableFuture<StatusHub.Subscription> subscribeStatus(String pincode, StatusHub.Sink sink) {
+        CompletableFuture<List<AtmLocation>> list = findAtmListAsync(pincode);
+        return list.isDone() ? list.thenApply(atms -> atms.isEmpty() ? null : subscribeStatus(atms, sink))
+                : list.thenApplyAsync(atms -> atms.isEmpty() ? null : subscribeStatus(atms, sink), dbExecutor);
+    }
+
+    /**
+     * Stream status changes of atms to sink: first every ATM with its current latest
+     * report, then each ATM again whenever a report for it has been written. The
+     * subscription starts before the snapshot is read, so no change is missed, but a
+     * change can overtake the snapshot of the same ATM; clients keep the report with the
+     * newest reportTimestamp. Returns null if too many clients are subscribed already.
+     */
+    public StatusHub.Subscription subscribeStatus(List<AtmLocation> atms, StatusHub.Sink sink) {
+        List<String> keys = new ArrayList<>(atms.size());
+        for (AtmLocation atm : atms) keys.add(AtmGeoIndex.hashKey(atm.getName(), atm.getAddress()));
+        StatusHub.Subscription subscription = statusHub.subscribe(keys, sink);
+        if (subscription != null) forEachWithLatestReport(atms, sink::send);
+        return subscription;
+    }
+
+    /**
+     * Partition maintenance and archival counters for ATM_reports.
+     */
+    public Map<String, Object> retentionStats() {
+        return retention.snapshot();
+    }
+
+    /**
+     * Subscriber and delivery counters of the status stream hub.
+     */
+    public Map<String, Object> statusStreamStats() {
+        return statusHub.snapshot();
+    }
+
+    /**
+     * Hot-pincode counts and refresh outcomes of the background prefetcher.
+     */
+    public Map<String, Object> prefetchStats() {
+        return prefetcher.snapshot();
+    }
+
+    /**
+     * Cache hit/miss/eviction counters for the per-pincode ATM list cache.
+     */
+    public Map<String, Object> cacheStats() {
+        return atmListCache.snapshot();
+    }
+
+    /**
+     * In-flight/queue counters of the Gemini client used for ATM lookups.
+     */
+    public Map<String, Object> geminiStats() {
+        return gemini.snapshot();
+    }
+
+    /**
+     * Canonical cache key for a user-supplied pincode: whitespace removed, lower-cased.
+     */
+    static String normalizePincode(String pincode) {
+        if (pincode == null) return "";
+        return pincode.replaceAll("\\s+", "").toLowerCase();
+    }
+
+    /**
+     * Ask Gemini for the ATMs near pincode and parse its "Name :: Address" lines.
+     * Returned locations carry no report. Completes with null when the upstream call
+     * failed, took longer than ATM_LOOKUP_TIMEOUT_MS or was refused by the breaker, so the
+     * failure is not cached.
+     */
+    private CompletableFuture<List<AtmLocation>> fetchAtmsFromGemini(String pincode) {
+        CompletableFuture<String> call = gemini.generate(GeminiClient.textPrompt(lookupPrompt(pincode)), hedgeLookups)
+                .orTimeout(lookupTimeoutMillis, TimeUnit.MILLISECONDS);
+        return call.handle((respBody, err) -> {
+            if (err != null) {
+                logLookupFailure(pincode, err);
+                return null;
+            }
+
+            List<AtmLocation> parsed = new ArrayList<>();
+            String generated;
+            try {
+                generated = GeminiResponses.generatedText(respBody);
+            } catch (RuntimeException e) {
+                Log.warn("atms.gemini_unparseable", "pincode", pincode, "error", e.getMessage());
+                return null;
             }
+            if (generated == null || generated.isBlank()) return parsed;
 
-        } catch (IOException e) {
-            System.err.println("IO error calling Gemini: " + e.getMessage());
-            e.printStackTrace();
+            AtmLineParser parser = new AtmLineParser(parsed::add);
+            parser.accept(generated);
+            parser.finish();
+            return Collections.unmodifiableList(parsed);
+        });
+    }
+
+    /**
+     * Like findAtmsNearPincodeAsync(), but each ATM (with its latest report) is handed to
+     * sink as soon as it is known instead of as one list at the end. On a cache or catalog
+     * hit that is immediately, on the calling thread. Otherwise Gemini is asked through
+     * streamGenerateContent and every "Name :: Address" line is parsed and emitted as soon
+     * as its newline arrives, so the first ATM is out after the first generated line
+     * rather than after the whole answer.
+     *
+     * Latest reports are looked up on a dbExecutor thread, one query for all ATMs that
+     * arrived while the previous query ran, so a streamed list costs a few queries rather
+     * than one per line. A complete streamed list is cached and catalogued like a regular
+     * lookup. If the stream fails before any ATM was emitted, the fallback list (see fallbackAtmList())
+     * is emitted instead; if it fails midway, what was emitted stands and nothing is
+     * cached. Unlike the cached path, concurrent streams for one pincode are not collapsed
+     * into one Gemini call, since each caller wants its own stream.
+     *
+     * sink is called by one thread at a time. The future completes with the number of
+     * ATMs emitted.
+     */
+    public CompletableFuture<Integer> streamAtms(String pincode, Consumer<AtmLocation> sink) {
+        return streamAtms(pincode, sink, false);
+    }
+
+    /**
+     * streamAtms(), reading the reports from the primary if primary is set (see
+     * getLatestReports()).
+     */
+    public CompletableFuture<Integer> streamAtms(String pincode, Consumer<AtmLocation> sink, boolean primary) {
+        String key = normalizePincode(pincode);
+        prefetcher.recordLookup(key);
+        List<AtmLocation> known = atmListCache.getIfPresent(key);
+        if (known == null) {
+            known = catalog.findFresh(key, catalogMaxAgeMillis);
+            if (known != null) atmListCache.put(key, known);
+        }
+        if (known != null) {
+            forEachWithLatestReport(known, sink, primary);
+            return CompletableFuture.completedFuture(known.size());
         }
-        return results;
+
+        // A timeout completes the call on the timer thread while the OkHttp thread may still
+        // be parsing; the batcher ignores late ATMs once it has been finished.
+        List<AtmLocation> streamed = Collections.synchronizedList(new ArrayList<>());
+        ReportBatcher batcher = new ReportBatcher(sink, primary);
+        AtmLineParser parser = new AtmLineParser(loc -> {
+            streamed.add(loc);
+            batcher.add(loc);
+        });
+        CompletableFuture<String> call = gemini.stream(GeminiClient.textPrompt(lookupPrompt(key)), parser::accept)
+                .orTimeout(lookupTimeoutMillis, TimeUnit.MILLISECONDS);
+        return call.handle((text, err) -> {
+            if (err == null) parser.finish(); // same thread that fed the parser
+            return err;
+        }).thenCompose(err -> batcher.finish(err != null).thenApply(emitted -> {
+            if (err == null) {
+                List<AtmLocation> atms;
+                synchronized (streamed) {
+                    atms = Collections.unmodifiableList(new ArrayList<>(streamed));
+                }
+                catalog.save(key, atms);
+                atmListCache.put(key, atms);
+                return emitted;
+            }
+            logLookupFailure(key, err);
+            if (emitted > 0) return emitted;
+            List<AtmLocation> fallback = fallbackAtmList(key);
+            if (fallback == null) return 0;
+            forEachWithLatestReport(fallback, sink, primary);
+            return fallback.size();
+        }));
     }
 
     /**
-     * Parse a likely Gemini response to extract the generated text.
-     * The Gemini v1beta response commonly includes a 'candidates' array with content objects.
+     * Passes the ATMs of one stream to its sink with their latest reports attached. The
+     * reports are read on a dbExecutor thread; ATMs added while a query is running are
+     * collected and looked up together by the next one. At most one drain runs at a time,
+     * so the sink is called by one thread at a time and in order.
      */
-    private String parseGeminiGeneratedText(String respBody) {
-        JSONObject root = new JSONObject(respBody);
-        JSONArray candidates = root.optJSONArray("candidates");
-        if (candidates != null && candidates.length() > 0) {
-            JSONObject first = candidates.getJSONObject(0);
-            JSONArray content = first.optJSONArray("content");
-            if (content != null) {
-                for (int i = 0; i < content.length(); i++) {
-                    JSONObject c = content.getJSONObject(i);
-                    if (c.has("text")) return c.getString("text");
-                    if (c.has("type") && "output_text".equals(c.optString("type")) && c.has("text")) return c.getString("text");
+    private final class ReportBatcher {
+        private final Consumer<AtmLocation> sink;
+        private final boolean primary;
+        private final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+        // Guarded by this.
+        private final List<AtmLocation> pending = new ArrayList<>();
+        private boolean draining;
+        private boolean finished;
+
+        // Only touched by the draining thread.
+        private int emitted;
+
+        ReportBatcher(Consumer<AtmLocation> sink, boolean primary) {
+            this.sink = sink;
+            this.primary = primary;
+        }
+
+        synchronized void add(AtmLocation loc) {
+            if (finished) return;
+            pending.add(loc);
+            scheduleDrain();
+        }
+
+        /**
+         * Stop accepting ATMs; the returned future completes with the number emitted once
+         * the pending ones are out, or right after the running query if discardPending.
+         */
+        synchronized CompletableFuture<Integer> finish(boolean discardPending) {
+            if (!finished) {
+                finished = true;
+                if (discardPending) pending.clear();
+                scheduleDrain();
+            }
+            return done;
+        }
+
+        private void scheduleDrain() {
+            if (draining) return;
+            draining = true;
+            try {
+                dbExecutor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining = false;
+                finished = true;
+                pending.clear();
+                done.completeExceptionally(e);
+            }
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    List<AtmLocation> batch;
+                    synchronized (this) {
+                        if (pending.isEmpty()) {
+                            draining = false;
+                            if (!finished) return;
+                            break;
+                        }
+                        batch = new ArrayList<>(pending);
+                        pending.clear();
+                    }
+                    forEachWithLatestReport(batch, loc -> {
+                        sink.accept(loc);
+                        emitted++;
+                    }, primary);
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    draining = false;
+                    finished = true;
+                    pending.clear();
                 }
+                done.completeExceptionally(e);
+                return;
             }
-            // try common field
-            if (first.has("output")) return first.optString("output");
+            done.complete(emitted);
+        }
+    }
+
+    private static String lookupPrompt(String pincode) {
+        return "Please find ATMs near pincode " + pincode + ". Provide a list where each ATM is on a new line, formatted exactly as: Name :: Address :: Latitude, Longitude";
+    }
+
+    private void logLookupFailure(String pincode, Throwable err) {
+        Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+        if (cause instanceof TimeoutException) {
+            Log.warn("atms.gemini_timeout", "pincode", pincode, "timeoutMillis", lookupTimeoutMillis);
+        } else {
+            Log.warn("atms.gemini_failed", "pincode", pincode, "error", cause.toString());
         }
-        // fallback to top-level text fields
-        if (root.has("output_text")) return root.optString("output_text");
-        return root.optString("text", null);
     }
 
     /**
      * Query the local DB for the latest report matching name+address.
+     * This is a primary-key lookup on atm_latest_status, independent of report history size.
      */
     public AtmReport getLatestReport(String name, String address) {
-        String sql = "SELECT cash_status, deposit_status, passbook_status, report_timestamp FROM ATM_reports "
-                + "WHERE atm_name = ? AND atm_address = ? ORDER BY report_timestamp DESC LIMIT 1";
-        try (Connection conn = DatabaseConnector.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+        return getLatestReport(name, address, false);
+    }
+
+    /**
+     * getLatestReport(), from the primary if primary is set (see getLatestReports()).
+     */
+    public AtmReport getLatestReport(String name, String address, boolean primary) {
+        String sql = "SELECT cash_status, deposit_status, passbook_status, report_timestamp, confirmations FROM atm_latest_status "
+                + "WHERE location_hash = ?";
+        try (Connection conn = primary ? DatabaseConnector.getConnection() : DatabaseConnector.getReadConnection()) {
             if (conn == null) return null;
-            ps.setString(1, name);
-            ps.setString(2, address);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    String cash = rs.getString("cash_status");
-                    String dep = rs.getString("deposit_status");
-                    String pass = rs.getString("passbook_status");
-                    Timestamp ts = rs.getTimestamp("report_timestamp");
-                    return new AtmReport(cash, dep, pass, ts);
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setBytes(1, AtmCatalog.locationHash(name, address));
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) return AtmRows.report(rs, 1);
                 }
             }
         } catch (SQLException e) {
-            System.err.println("SQL error in getLatestReport: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("reports.latest_failed", e);
         }
         return null;
     }
 
     /**
-     * Submit a report into the local DB.
+     * Return copies of the given locations with their latest report attached, fetching
+     * the reports for all locations in one query on one pooled connection.
      */
-    public void submitReport(String name, String address, String cashStatus, String depositStatus, String passbookStatus) {
-        String sql = "INSERT INTO ATM_reports (atm_name, atm_address, cash_status, deposit_status, passbook_status) VALUES (?, ?, ?, ?, ?)";
-        try (Connection conn = DatabaseConnector.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            if (conn == null) throw new SQLException("No DB connection");
-            ps.setString(1, name);
-            ps.setString(2, address);
-            ps.setString(3, cashStatus);
-            ps.setString(4, depositStatus);
-            ps.setString(5, passbookStatus);
-            ps.executeUpdate();
+    public List<AtmLocation> withLatestReports(List<AtmLocation> locations) {
+        List<AtmLocation> out = new ArrayList<>(locations.size());
+        forEachWithLatestReport(locations, out::add);
+        return out;
+    }
+
+    /**
+     * Pass each location, with its latest report attached, to sink in order. Reports are
+     * fetched MAX_KEYS_PER_QUERY locations at a time, so only one chunk of reports is held
+     * in memory and the first locations reach sink before later chunks are queried.
+     */
+    public void forEachWithLatestReport(List<AtmLocation> locations, Consumer<AtmLocation> sink) {
+        forEachWithLatestReport(locations, sink, false);
+    }
+
+    /**
+     * forEachWithLatestReport(), reading the reports from the primary if primary is set
+     * (see getLatestReports()).
+     */
+    public void forEachWithLatestReport(List<AtmLocation> locations, Consumer<AtmLocation> sink, boolean primary) {
+        for (int from = 0; from < locations.size(); from += MAX_KEYS_PER_QUERY) {
+            List<AtmLocation> chunk = locations.subList(from, Math.min(locations.size(), from + MAX_KEYS_PER_QUERY));
+            Map<String, AtmReport> latest = getLatestReports(chunk, primary);
+            for (AtmLocation loc : chunk) {
+                sink.accept(loc.withReport(latest.get(locationKey(loc.getName(), loc.getAddress()))));
+            }
+        }
+    }
+
+    /**
+     * Query the local DB for the latest report of every given name+address pair in a
+     * single round trip of primary-key lookups on atm_latest_status. The result is keyed by locationKey(name, address); locations
+     * without any report are absent from the map.
+     */
+    public Map<String, AtmReport> getLatestReports(List<AtmLocation> locations) {
+        return getLatestReports(locations, false);
+    }
+
+    /**
+     * getLatestReports(), read from a replica (DatabaseConnector.getReadConnection()) unless
+     * primary is set. Callers set primary for a client that has just submitted a report,
+     * so it sees its own report despite replication lag.
+     */
+    public Map<String, AtmReport> getLatestReports(List<AtmLocation> locations, boolean primary) {
+        Map<String, AtmReport> result = new HashMap<>();
+        if (locations.isEmpty()) return result;
+
+        // De-duplicate so repeated Gemini lines do not widen the IN list.
+        Map<String, AtmLocation> unique = new LinkedHashMap<>();
+        for (AtmLocation loc : locations) {
+            unique.putIfAbsent(locationKey(loc.getName(), loc.getAddress()), loc);
+        }
+
+        try (Connection conn = primary ? DatabaseConnector.getConnection() : DatabaseConnector.getReadConnection()) {
+            if (conn == null) return result;
+            List<AtmLocation> keys = new ArrayList<>(unique.values());
+            for (int from = 0; from < keys.size(); from += MAX_KEYS_PER_QUERY) {
+                List<AtmLocation> chunk = keys.subList(from, Math.min(keys.size(), from + MAX_KEYS_PER_QUERY));
+                try (PreparedStatement ps = conn.prepareStatement(latestReportsSql(chunk.size()))) {
+                    int i = 1;
+                    for (AtmLocation loc : chunk) {
+                        ps.setBytes(i++, AtmCatalog.locationHash(loc.getName(), loc.getAddress()));
+                    }
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            result.put(locationKey(rs.getString(1), rs.getString(2)), AtmRows.report(rs, 3));
+                        }
+                    }
+                }
+            }
         } catch (SQLException e) {
-            System.err.println("SQL error in submitReport: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("reports.latest_batch_failed", e, "atms", locations.size());
+        }
+        return result;
+    }
+
+    private static String latestReportsSql(int keyCount) {
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < keyCount; i++) {
+            if (i > 0) in.append(", ");
+            in.append('?');
+        }
+        return "SELECT atm_name, atm_address, cash_status, deposit_status, passbook_status, report_timestamp, confirmations "
+                + "FROM atm_latest_status WHERE location_hash IN (" + in + ")";
+    }
+
+    /**
+     * Map key identifying an ATM by name and address, matched like locationHash()
+     * (AtmCatalog.normalize).
+     */
+    static String locationKey(String name, String address) {
+        return AtmCatalog.normalize(name) + '\u0000' + AtmCatalog.normalize(address);
+    }
+
+    /**
+     * Submit a report into the local DB. Status strings are normalized to AtmStatus
+     * codes here, once, and the report is queued for the write-behind ReportWriter;
+     * the returned future completes when its batch is committed and is already failed
+     * with ReportWriter.QueueFullException if the queue is full.
+     */
+    public CompletableFuture<Void> submitReport(String name, String address, String cashStatus, String depositStatus, String passbookStatus) {
+        return reportWriter.submit(name.trim(), address.trim(),
+                AtmStatus.parse(cashStatus), AtmStatus.parse(depositStatus), AtmStatus.parse(passbookStatus));
+    }
+
+    /**
+     * Queue depth and batch counters of the report writer.
+     */
+    public Map<String, Object> reportWriterStats() {
+        return reportWriter.snapshot();
+    }
+
+    /**
+     * Load the ATM lists of up to maxPincodes recently catalogued pincodes into the list
+     * cache, so the first lookups after startup are cache hits. Returns the cached lists
+     * by pincode, most recently refreshed first.
+     */
+    public Map<String, List<AtmLocation>> primeCaches(int maxPincodes) {
+        Map<String, List<AtmLocation>> primed = new LinkedHashMap<>();
+        for (String pincode : catalog.recentPincodes(maxPincodes)) {
+            List<AtmLocation> atms = catalog.findFresh(pincode, catalogMaxAgeMillis);
+            if (atms == null) continue;
+            atmListCache.put(pincode, atms);
+            primed.put(pincode, atms);
+        }
+        return primed;
+    }
+
+    /**
+     * Wait up to timeoutMillis for the first load of the geo and search indexes. Returns
+     * true if both are loaded.
+     */
+    public boolean awaitIndexes(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!(geoIndex.isLoaded() && searchIndex.isLoaded())) {
+            if (System.currentTimeMillis() >= deadline) return false;
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    /**
+     * End every status stream with a "shutdown" close event; new subscriptions are refused.
+     */
+    public void closeStatusStreams() {
+        statusHub.stop();
+    }
+
+    /**
+     * Stop the background work and flush the reports still queued in the ReportWriter,
+     * waiting up to timeoutMillis for them to be committed. Call once no more requests
+     * are being served. Returns false if the writer had not finished by then, in which
+     * case the DB pools must be left open for it.
+     */
+    public boolean shutdown(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        prefetcher.stop();
+        retention.stop();
+        geoIndex.stop();
+        searchIndex.stop();
+        dbExecutor.shutdown();
+        try {
+            // Batched reports are handed to the writer from dbExecutor; let them get there first.
+            dbExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        boolean flushed = reportWriter.close(Math.max(1, deadline - System.currentTimeMillis()));
+        statusHub.stop();
+        return flushed;
     }
 
 }
@@ -0,0 +1,82 @@
+import java.util.Locale;
+
+/**
+ * Compact status code stored in the TINYINT cash_status / deposit_status /
+ * passbook_status columns (see sql/encode_report_statuses.sql).
+ *
+ * Free-text input from /api/report is normalized once at ingest with parse(), so
+ * readers compare small integers instead of LOWER()/LIKE-ing strings on every row.
+ * The codes are persisted: never renumber existing constants, only append.
+ */
+public enum AtmStatus {
+    UNKNOWN(0),
+    WORKING(1),
+    AVAILABLE(2),
+    NOT_WORKING(3),
+    NOT_AVAILABLE(4),
+    OUT_OF_CASH(5),
+    BROKEN(6);
+
+    private static final AtmStatus[] BY_CODE = new AtmStatus[values().length];
+    static {
+        for (AtmStatus s : values()) BY_CODE[s.code] = s;
+    }
+
+    private final int code;
+
+    AtmStatus(int code) {
+        this.code = code;
+    }
+
+    public int getCode() { return code; }
+
+    /**
+     * True for statuses meaning the service is usable (cash can be withdrawn, the
+     * deposit machine or passbook printer works).
+     */
+    public boolean isPositive() {
+        return this == WORKING || this == AVAILABLE;
+    }
+
+    public static AtmStatus fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : UNKNOWN;
+    }
+
+    /**
+     * Normalize user input such as "Working", "out of cash", "yes" or "not-available".
+     * Anything unrecognised, null or blank maps to UNKNOWN.
+     */
+    public static AtmStatus parse(String raw) {
+        if (raw == null) return UNKNOWN;
+        String s = raw.trim().toUpperCase(Locale.ROOT).replace(' ', '_').replace('-', '_');
+        switch (s) {
+            case "WORKING":
+            case "OK":
+            case "UP":
+                return WORKING;
+            case "AVAILABLE":
+            case "YES":
+            case "Y":
+            case "TRUE":
+                return AVAILABLE;
+            case "NOT_WORKING":
+            case "DOWN":
+            case "OUT_OF_ORDER":
+                return NOT_WORKING;
+            case "NOT_AVAILABLE":
+            case "UNAVAILABLE":
+            case "NO":
+            case "N":
+            case "FALSE":
+                return NOT_AVAILABLE;
+            case "OUT_OF_CASH":
+            case "NO_CASH":
+            case "EMPTY":
+                return OUT_OF_CASH;
+            case "BROKEN":
+                return BROKEN;
+            default:
+                return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count-based circuit breaker.
+ *
+ * While CLOSED, the outcome of the last windowSize calls is kept. Once at least minCalls
+ * are recorded and either the failure rate or the slow-call rate (calls longer than
+ * slowCallMillis) reaches its threshold, the breaker OPENs and tryAcquire() refuses
+ * calls for openMillis. It then goes HALF_OPEN and lets halfOpenCalls probes through:
+ * one failed or slow probe re-opens it, all probes succeeding closes it again.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int windowSize;
+    private final int minCalls;
+    private final double failureRateThreshold;
+    private final double slowRateThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenStarted;
+    private int halfOpenSucceeded;
+
+    // Ring buffer of recent outcomes while CLOSED.
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int recorded;
+    private int next;
+    private int failures;
+    private int slows;
+
+    private long opened;
+    private long refused;
+
+    public CircuitBreaker(int windowSize, int minCalls, double failureRateThreshold, double slowRateThreshold,
+                          long slowCallMillis, long openMillis, int halfOpenCalls) {
+        this.windowSize = Math.max(1, windowSize);
+        this.minCalls = Math.max(1, Math.min(minCalls, this.windowSize));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowRateThreshold = slowRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.failed = new boolean[this.windowSize];
+        this.slow = new boolean[this.windowSize];
+    }
+
+    /**
+     * Build a breaker from GEMINI_BREAKER_WINDOW (default 20), GEMINI_BREAKER_MIN_CALLS (10),
+     * GEMINI_BREAKER_FAILURE_RATE (0.5), GEMINI_BREAKER_SLOW_RATE (0.5),
+     * GEMINI_BREAKER_SLOW_CALL_MS (10000), GEMINI_BREAKER_OPEN_MS (30000) and
+     * GEMINI_BREAKER_HALF_OPEN_CALLS (3).
+     */
+    public static CircuitBreaker fromConfig() {
+        return new CircuitBreaker(
+                AppConfig.getInt("GEMINI_BREAKER_WINDOW", 20),
+                AppConfig.getInt("GEMINI_BREAKER_MIN_CALLS", 10),
+                AppConfig.getDouble("GEMINI_BREAKER_FAILURE_RATE", 0.5),
+                AppConfig.getDouble("GEMINI_BREAKER_SLOW_RATE", 0.5),
+                AppConfig.getLong("GEMINI_BREAKER_SLOW_CALL_MS", 10000),
+                AppConfig.getLong("GEMINI_BREAKER_OPEN_MS", 30000),
+                AppConfig.getInt("GEMINI_BREAKER_HALF_OPEN_CALLS", 3));
+    }
+
+    /**
+     * True if a call may be made now. Every permitted call must later report
+     * onSuccess(), onFailure() or onIgnored().
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+            halfOpenStarted = 0;
+            halfOpenSucceeded = 0;
+        }
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (halfOpenStarted < halfOpenCalls) {
+                    halfOpenStarted++;
+                    return true;
+                }
+                refused++;
+                return false;
+            default:
+                refused++;
+                return false;
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized void onSuccess(long durationNanos) {
+        record(false, durationNanos >= slowCallNanos);
+    }
+
+    public synchronized void onFailure(long durationNanos) {
+        record(true, durationNanos >= slowCallNanos);
+    }
+
+    /**
+     * The permitted call ended without saying anything about upstream health (e.g. it
+     * was cancelled locally).
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN && halfOpenStarted > halfOpenSucceeded) halfOpenStarted--;
+    }
+
+    private void record(boolean isFailure, boolean isSlow) {
+        if (state == State.OPEN) return; // outcome of a call started before we tripped
+        if (state == State.HALF_OPEN) {
+            if (isFailure || isSlow) {
+                trip();
+            } else if (++halfOpenSucceeded >= halfOpenCalls) {
+                state = State.CLOSED;
+                resetWindow();
+            }
+            return;
+        }
+
+        if (recorded == windowSize) {
+            if (failed[next]) failures--;
+            if (slow[next]) slows--;
+        } else {
+            recorded++;
+        }
+        failed[next] = isFailure;
+        slow[next] = isSlow;
+        if (isFailure) failures++;
+        if (isSlow) slows++;
+        next = (next + 1) % windowSize;
+
+        if (recorded >= minCalls
+                && ((double) failures / recorded >= failureRateThreshold || (double) slows / recorded >= slowRateThreshold)) {
+            trip();
+        }
+    }
+
+    private void trip() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        opened++;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        recorded = 0;
+        next = 0;
+        failures = 0;
+        slows = 0;
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("state", state.name());
+        m.put("windowCalls", recorded);
+        m.put("windowFailures", failures);
+        m.put("windowSlowCalls", slows);
+        m.put("timesOpened", opened);
+        m.put("refused", refused);
+        return m;
+    }
+}
@@ -0,0 +1,317 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small bounded JDBC connection pool used by DatabaseConnector.
+ *
+ * Connections handed out are proxies: calling close() returns the physical
+ * connection to the pool instead of closing it, so existing try-with-resources
+ * code keeps working unchanged.
+ *
+ * Features:
+ * - min/max size (min connections are opened eagerly and kept topped up)
+ * - validation of connections that sat idle longer than the validation interval
+ * - leak detection: borrowed connections held longer than the leak threshold are logged
+ *   together with the stack trace of the borrower
+ * - wait time / occupancy counters, see snapshot(); wait and hold times are also exported
+ *   to Metrics, and hold time is credited to the closing thread (Metrics.threadDbNanos)
+ */
+public class ConnectionPool {
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long validateAfterIdleMillis;
+    private final long leakThresholdMillis;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Map<PooledConnection, Borrow> borrowed = new ConcurrentHashMap<>();
+    private final Semaphore permits;
+    private final AtomicInteger total = new AtomicInteger();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    // Metrics
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong waitNanosTotal = new AtomicLong();
+    private final AtomicLong waitNanosMax = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+    private final LatencyHistogram waitTime = Metrics.timer("db_pool_wait_seconds", "Time spent waiting for a pooled connection.", "");
+    private final LatencyHistogram holdTime = Metrics.timer("db_connection_hold_seconds", "Time a pooled connection was held per borrow.", "");
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize,
+                          long borrowTimeoutMillis, long validateAfterIdleMillis, long leakThresholdMillis) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be >= 1");
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = Math.max(0, Math.min(minSize, maxSize));
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000L, Math.min(leakThresholdMillis, 30_000L) / 2);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+        fillToMinimum();
+    }
+
+    /**
+     * Borrow a connection, waiting up to the configured timeout for a free slot (else
+     * SQLTimeoutException). Closing the returned connection gives it back to the pool.
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanosTotal.addAndGet(waited);
+        waitTime.recordNanos(waited);
+        waitNanosMax.accumulateAndGet(waited, Math::max);
+        if (!acquired) {
+            timeoutCount.incrementAndGet();
+            throw new SQLTimeoutException("Timed out after " + borrowTimeoutMillis + " ms waiting for a pooled connection ("
+                    + maxSize + " in use)");
+        }
+
+        try {
+            PooledConnection pc = takeUsable();
+            borrowCount.incrementAndGet();
+            borrowed.put(pc, new Borrow(System.currentTimeMillis(), new Throwable("Connection borrowed here")));
+            return pc.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledConnection takeUsable() throws SQLException {
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - pc.lastReturned < validateAfterIdleMillis || isValid(pc)) {
+                return pc;
+            }
+            validationFailures.incrementAndGet();
+            discard(pc);
+        }
+        return open();
+    }
+
+    private boolean isValid(PooledConnection pc) {
+        try {
+            return pc.physical.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection physical = DriverManager.getConnection(url, user, password);
+        total.incrementAndGet();
+        createdCount.incrementAndGet();
+        return new PooledConnection(physical);
+    }
+
+    private void discard(PooledConnection pc) {
+        total.decrementAndGet();
+        try { pc.physical.close(); } catch (SQLException ignore) {}
+    }
+
+    private void giveBack(PooledConnection pc) {
+        if (borrowed.remove(pc) == null) return; // already returned
+        try {
+            if (closed || pc.physical.isClosed() || total.get() > maxSize) {
+                discard(pc);
+                return;
+            }
+            if (!pc.physical.getAutoCommit()) {
+                pc.physical.rollback();
+                pc.physical.setAutoCommit(true);
+            }
+            if (pc.physical.isReadOnly()) {
+                pc.physical.setReadOnly(false);
+            }
+            pc.lastReturned = System.currentTimeMillis();
+            idle.offerFirst(pc);
+        } catch (SQLException e) {
+            discard(pc);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<PooledConnection, Borrow> e : borrowed.entrySet()) {
+            Borrow b = e.getValue();
+            if (!b.reported && now - b.since > leakThresholdMillis) {
+                b.reported = true;
+                leakCount.incrementAndGet();
+                // The stack trace is where the connection was borrowed.
+                Log.error("db.connection_leak", b.origin, "heldMillis", now - b.since);
+            }
+        }
+        fillToMinimum();
+    }
+
+    private void fillToMinimum() {
+        while (!closed && total.get() < minSize && permits.tryAcquire()) {
+            try {
+                PooledConnection pc = open();
+                pc.lastReturned = System.currentTimeMillis();
+                idle.offerLast(pc);
+            } catch (SQLException e) {
+                Log.warn("db.pool_preopen_failed", "error", e.getMessage());
+                return;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Close all idle connections and stop handing out new ones. Borrowed
+     * connections are closed as they are returned.
+     */
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            discard(pc);
+        }
+    }
+
+    public int getActiveCount() { return borrowed.size(); }
+    public int getIdleCount() { return idle.size(); }
+    public int getTotalCount() { return total.get(); }
+    public int getMaxSize() { return maxSize; }
+
+    /**
+     * Point-in-time view of pool occupancy and wait metrics.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        long borrows = borrowCount.get();
+        m.put("active", getActiveCount());
+        m.put("idle", getIdleCount());
+        m.put("total", getTotalCount());
+        m.put("max", maxSize);
+        m.put("waiting", permits.getQueueLength());
+        m.put("borrows", borrows);
+        m.put("created", createdCount.get());
+        m.put("timeouts", timeoutCount.get());
+        m.put("validationFailures", validationFailures.get());
+        m.put("leaks", leakCount.get());
+        m.put("waitMillisTotal", TimeUnit.NANOSECONDS.toMillis(waitNanosTotal.get()));
+        m.put("waitMillisMax", TimeUnit.NANOSECONDS.toMillis(waitNanosMax.get()));
+        m.put("waitMillisAvg", borrows == 0 ? 0.0 : waitNanosTotal.get() / 1_000_000.0 / borrows);
+        return m;
+    }
+
+    private static final class Borrow {
+        final long since;
+        final Throwable origin;
+        volatile boolean reported;
+
+        Borrow(long since, Throwable origin) {
+            this.since = since;
+            this.origin = origin;
+        }
+    }
+
+    private final class PooledConnection {
+        final Connection physical;
+        volatile long lastReturned;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new Handle(this));
+        }
+    }
+
+    /**
+     * Per-borrow proxy. Once closed, the handle refuses further use so a caller
+     * cannot keep talking to a connection that now belongs to someone else.
+     */
+    private final class Handle implements InvocationHandler {
+        private final PooledConnection pc;
+        private final long borrowedAtNanos = System.nanoTime();
+        private boolean released;
+
+        Handle(PooledConnection pc) {
+            this.pc = pc;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        long held = System.nanoTime() - borrowedAtNanos;
+                        holdTime.recordNanos(held);
+                        Metrics.addThreadDbNanos(held);
+                        giveBack(pc);
+                    }
+                    return null;
+                case "isClosed":
+                    return released || pc.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pc.physical + "]";
+                default:
+                    if (released) throw new SQLException("Connection has already been returned to the pool");
+                    try {
+                        return method.invoke(pc.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+}
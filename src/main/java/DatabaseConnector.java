@@ -1,50 +1,285 @@
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Utility class to provide a JDBC Connection to the local MySQL database `atm_db`.
  *
+ * Connections come from a process-wide ConnectionPool, so calling close() on the
+ * returned connection hands it back to the pool rather than tearing down the socket.
+ *
+ * Writes, and reads that must see them, use getConnection(), which always goes to the
+ * primary (MYSQL_URL). Reads that can be slightly stale use getReadConnection(), which
+ * goes to one of the read replicas when MYSQL_REPLICA_URLS is set, so read capacity grows
+ * by adding replicas. See getReadConnection().
+ *
+ * Replicas get pools of their own rather than a jdbc:mysql:replication:// URL, whose
+ * ReplicationConnection routes by setReadOnly(). Here every call site picks primary or
+ * replica explicitly, so a pooled connection never carries a read-only flag from one
+ * borrower to the next. A replica that is down is skipped for a while, and an exhausted
+ * replica pool falls back to the primary; each replica has its own pool metrics and
+ * both cases are counted. Nothing depends on the MySQL driver, so the same code runs
+ * against the H2 stand-in of the bench module.
+ *
  * Usage:
- *   Connection conn = DatabaseConnector.getConnection();
- *   if (conn != null) { ... }
+ *   try (Connection conn = DatabaseConnector.getConnection()) {
+ *       if (conn != null) { ... }
+ *   }
  */
 public class DatabaseConnector {
 
+    private static volatile ConnectionPool pool;
+    private static volatile Replicas replicas;
+    // Set by shutdown(); the pools are never built again after it.
+    private static volatile boolean closed;
+
+    private static final LongAdder replicaFallbacks = Metrics.counter("db_replica_fallback_total", "Replica reads served by the primary because no replica was usable.", "");
+
+    static {
+        Metrics.gauge("db_pool_active", "Pooled connections currently borrowed.", "", () -> pool != null ? pool.getActiveCount() : 0);
+        Metrics.gauge("db_pool_idle", "Pooled connections currently idle.", "", () -> pool != null ? pool.getIdleCount() : 0);
+        Metrics.gauge("db_pool_max", "Maximum pool size.", "", () -> pool != null ? pool.getMaxSize() : 0);
+        Metrics.gauge("db_replica_pool_active", "Replica connections currently borrowed, over all replicas.", "", () -> {
+            Replicas r = replicas;
+            int active = 0;
+            if (r != null) for (ConnectionPool p : r.pools) active += p.getActiveCount();
+            return active;
+        });
+    }
+
     /**
      * Return a java.sql.Connection to the configured MySQL database.
      *
      * Connection parameters are read from environment variables with sensible
-     * defaults so you can override them without changing source code:
+     * defaults so you can override them without changing source code (MYSQL_URL and
+     * MYSQL_DRIVER may also be given as system properties):
      *
      * - MYSQL_URL (default: jdbc:mysql://localhost:3007/atm_db)
      * - MYSQL_USER (default: admin)
      * - MYSQL_PASSWORD (default: admin)
+     * - MYSQL_DRIVER (default: com.mysql.cj.jdbc.Driver) JDBC driver class, e.g. org.h2.Driver
+     *   for the MySQL-mode stand-in used by the bench module
+     *
+     * Pool sizing and timeouts:
      *
-     * On failure this method prints a helpful message and returns null.
+     * - MYSQL_POOL_MIN (default: 2)
+     * - MYSQL_POOL_MAX (default: 10)
+     * - MYSQL_POOL_TIMEOUT_MS (default: 5000) how long a caller waits for a free connection
+     * - MYSQL_POOL_VALIDATE_MS (default: 30000) idle time after which a connection is re-validated
+     * - MYSQL_POOL_LEAK_MS (default: 60000) borrow time after which a connection is reported as leaked
+     *
+     * On failure this method prints a helpful message and returns null. After shutdown()
+     * it throws SQLException instead.
+     */
+    public static Connection getConnection() throws SQLException {
+        ConnectionPool p = pool();
+        if (p == null) return null;
+        try {
+            return p.borrow();
+        } catch (SQLException e) {
+            Log.error("db.connection_failed", e);
+        }
+        return null;
+    }
+
+    /**
+     * A connection for reads that tolerate replication lag: from the next read replica in
+     * turn, or from the primary when no replicas are configured or none can hand out a
+     * connection. Callers that must see their own recent writes use getConnection().
+     *
+     * - MYSQL_REPLICA_URLS (default: none) whitespace-separated JDBC URLs of the read
+     *   replicas; one entry may itself be a jdbc:mysql:loadbalance:// URL
+     * - MYSQL_REPLICA_POOL_MIN / MYSQL_REPLICA_POOL_MAX (default: MYSQL_POOL_MIN / MYSQL_POOL_MAX)
+     *   pool size per replica; the other pool settings are shared with the primary
+     * - MYSQL_REPLICA_RETRY_MS (default: 5000) how long a replica that failed to hand out a
+     *   connection is skipped
+     *
+     * On failure this method prints a helpful message and returns null. After shutdown()
+     * it throws SQLException instead.
+     */
+    public static Connection getReadConnection() throws SQLException {
+        Replicas r = replicas();
+        if (r != null) {
+            Connection conn = r.borrow();
+            if (conn != null) return conn;
+            replicaFallbacks.increment();
+        }
+        return getConnection();
+    }
+
+    /**
+     * Pool occupancy and wait metrics, or an empty map if the pool was never created.
+     */
+    public static Map<String, Object> poolStats() {
+        ConnectionPool p = pool;
+        return p != null ? p.snapshot() : Map.of();
+    }
+
+    /**
+     * Per-replica pool metrics and the number of reads that fell back to the primary, or
+     * an empty map if no replicas are configured.
+     */
+    public static Map<String, Object> replicaPoolStats() {
+        Replicas r = replicas;
+        if (r == null) return Map.of();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("replicas", r.pools.size());
+        m.put("fallbacksToPrimary", replicaFallbacks.sum());
+        List<Map<String, Object>> pools = new ArrayList<>(r.pools.size());
+        for (int i = 0; i < r.pools.size(); i++) {
+            Map<String, Object> stats = new LinkedHashMap<>(r.pools.get(i).snapshot());
+            stats.put("skippedUntilMillis", r.skipUntil.get(i));
+            pools.add(stats);
+        }
+        m.put("pools", pools);
+        return m;
+    }
+
+    /**
+     * Close the pools (idle connections are closed immediately, borrowed ones on return).
+     * Final: later getConnection() and getReadConnection() calls throw SQLException rather
+     * than opening new pools, so whatever must still be written (the ReportWriter's last
+     * batch) has to be finished before this is called.
      */
-    public static Connection getConnection() {
+    public static synchronized void shutdown() {
+        closed = true;
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+        if (replicas != null) {
+            for (ConnectionPool p : replicas.pools) p.close();
+            replicas = null;
+        }
+    }
+
+    private static ConnectionPool pool() throws SQLException {
+        ConnectionPool p = pool;
+        if (p != null) return p;
+        synchronized (DatabaseConnector.class) {
+            if (closed) throw new SQLException("DatabaseConnector is shut down");
+            if (pool == null) {
+                pool = createPool();
+            }
+            return pool;
+        }
+    }
+
+    private static Replicas replicas() throws SQLException {
+        Replicas r = replicas;
+        if (r != null) return r.pools.isEmpty() ? null : r;
+        synchronized (DatabaseConnector.class) {
+            if (closed) throw new SQLException("DatabaseConnector is shut down");
+            if (replicas == null) {
+                replicas = createReplicas();
+            }
+            return replicas.pools.isEmpty() ? null : replicas;
+        }
+    }
+
+    private static Replicas createReplicas() {
+        List<ConnectionPool> pools = new ArrayList<>();
+        String urls = AppConfig.getString("MYSQL_REPLICA_URLS", "").trim();
+        if (!urls.isEmpty() && loadDriver()) {
+            String user = AppConfig.getString("MYSQL_USER", "admin");
+            String password = AppConfig.getString("MYSQL_PASSWORD", "admin");
+            for (String url : urls.split("\\s+")) {
+                pools.add(new ConnectionPool(withStatementCache(url), user, password,
+                        AppConfig.getInt("MYSQL_REPLICA_POOL_MIN", AppConfig.getInt("MYSQL_POOL_MIN", 2)),
+                        AppConfig.getInt("MYSQL_REPLICA_POOL_MAX", AppConfig.getInt("MYSQL_POOL_MAX", 10)),
+                        AppConfig.getInt("MYSQL_POOL_TIMEOUT_MS", 5000),
+                        AppConfig.getInt("MYSQL_POOL_VALIDATE_MS", 30000),
+                        AppConfig.getInt("MYSQL_POOL_LEAK_MS", 60000)));
+            }
+        }
+        return new Replicas(pools, AppConfig.getLong("MYSQL_REPLICA_RETRY_MS", 5000));
+    }
+
+    private static ConnectionPool createPool() {
     // Default to the MySQL instance you ran earlier on port 3307
     String defaultUrl = "jdbc:mysql://localhost:3307/atm_db";
-        String url = System.getenv().getOrDefault("MYSQL_URL", defaultUrl);
-        String user = System.getenv().getOrDefault("MYSQL_USER", "admin");
-        String password = System.getenv().getOrDefault("MYSQL_PASSWORD", "admin");
+        String url = AppConfig.getString("MYSQL_URL", defaultUrl);
+        String user = AppConfig.getString("MYSQL_USER", "admin");
+        String password = AppConfig.getString("MYSQL_PASSWORD", "admin");
+        // Let the driver collapse JDBC batches (see ReportWriter) into multi-row INSERTs.
+        if (url.startsWith("jdbc:mysql:") && !url.contains("rewriteBatchedStatements")) {
+            url += (url.contains("?") ? "&" : "?") + "rewriteBatchedStatements=true";
+        }
+        url = withStatementCache(url);
+        if (!loadDriver()) return null;
 
+        return new ConnectionPool(url, user, password,
+                AppConfig.getInt("MYSQL_POOL_MIN", 2),
+                AppConfig.getInt("MYSQL_POOL_MAX", 10),
+                AppConfig.getInt("MYSQL_POOL_TIMEOUT_MS", 5000),
+                AppConfig.getInt("MYSQL_POOL_VALIDATE_MS", 30000),
+                AppConfig.getInt("MYSQL_POOL_LEAK_MS", 60000));
+    }
+
+    /**
+     * Have MySQL connections keep their parsed prepared statements, so the hot statements
+     * prepared during warm-up (and every later borrow) are not parsed again.
+     */
+    private static String withStatementCache(String url) {
+        if (!url.startsWith("jdbc:mysql:") || url.contains("cachePrepStmts")) return url;
+        return url + (url.contains("?") ? "&" : "?") + "cachePrepStmts=true&prepStmtCacheSize=64&prepStmtCacheSqlLimit=4096";
+    }
+
+    private static boolean loadDriver() {
+        String driver = AppConfig.getString("MYSQL_DRIVER", "com.mysql.cj.jdbc.Driver");
         try {
             // The driver class is no longer strictly required to be loaded manually
             // with newer JDBC drivers, but calling Class.forName keeps compatibility.
-            Class.forName("com.mysql.cj.jdbc.Driver");
+            // This now happens once per process instead of once per request.
+            Class.forName(driver);
+            return true;
+        } catch (ClassNotFoundException e) {
+            Log.error("db.driver_missing", e, "driver", driver, "hint", "add mysql-connector-j to the classpath");
+            return false;
+        }
+    }
 
-            return DriverManager.getConnection(url, user, password);
+    /**
+     * Replica pools, used round-robin. A replica whose pool fails to open or validate a
+     * connection (down, unreachable) is skipped for retryMillis so reads do not keep paying
+     * for the failure. A replica whose pool is merely exhausted is busy, not down: the
+     * read moves on to the next replica but the exhausted one stays in rotation.
+     */
+    private static final class Replicas {
+        final List<ConnectionPool> pools;
+        final AtomicLongArray skipUntil;
+        final long retryMillis;
+        final AtomicInteger next = new AtomicInteger();
 
-        } catch (ClassNotFoundException e) {
-            System.err.println("MySQL JDBC Driver not found. Add mysql-connector-java to the classpath or your Maven dependencies.");
-            e.printStackTrace();
-        } catch (SQLException e) {
-            System.err.println("Failed to establish a database connection to " + url + " with user '" + user + "'.");
-            e.printStackTrace();
+        Replicas(List<ConnectionPool> pools, long retryMillis) {
+            this.pools = pools;
+            this.skipUntil = new AtomicLongArray(pools.size());
+            this.retryMillis = retryMillis;
         }
 
-        return null;
+        Connection borrow() {
+            int start = Math.floorMod(next.getAndIncrement(), pools.size());
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < pools.size(); i++) {
+                int at = (start + i) % pools.size();
+                if (skipUntil.get(at) > now) continue;
+                try {
+                    return pools.get(at).borrow();
+                } catch (SQLTimeoutException e) {
+                    // Exhausted; counted in the pool's timeouts.
+                } catch (SQLException e) {
+                    Log.warn("db.replica_unavailable", "replica", at, "skipMillis", retryMillis, "error", e.getMessage());
+                    skipUntil.set(at, now + retryMillis);
+                }
+            }
+            return null;
+        }
     }
 }
@@ -0,0 +1,144 @@
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Writes server-sent events (text/event-stream) to a response output stream.
+ *
+ * Each send() writes one complete event and flushes it, so the client sees it
+ * immediately. Sends may come from any thread; they are serialized. The first failed
+ * write (usually the client disconnecting) closes the stream, and later sends are
+ * dropped and return false so producers can stop early.
+ *
+ * A stream made with nonBlocking() never blocks the sending thread: events the client
+ * has not taken yet are queued and written from the container's WriteListener callback.
+ * Once more than maxPendingBytes are queued the client is not keeping up, the stream
+ * closes and send() returns false.
+ */
+public class EventStream {
+
+    private final OutputStream out;
+    private final ServletOutputStream async;
+    private final int maxPendingBytes;
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private int pendingBytes;
+    private boolean flushDue;
+    private boolean open = true;
+
+    public EventStream(OutputStream out) {
+        this(out, null, 0);
+    }
+
+    private EventStream(OutputStream out, ServletOutputStream async, int maxPendingBytes) {
+        this.out = out;
+        this.async = async;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * A stream over the response of an async request, written in servlet non-blocking
+     * mode. out must not have been given a WriteListener yet.
+     */
+    public static EventStream nonBlocking(ServletOutputStream out, int maxPendingBytes) {
+        EventStream stream = new EventStream(out, out, Math.max(1, maxPendingBytes));
+        out.setWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible() {
+                stream.writePending();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                stream.close();
+            }
+        });
+        return stream;
+    }
+
+    /**
+     * Send an event of the given type; multi-line data is split into several data: lines.
+     * Returns false if the stream is closed.
+     */
+    public synchronized boolean send(String event, String data) {
+        if (!open) return false;
+        StringBuilder sb = new StringBuilder(data.length() + event.length() + 16);
+        sb.append("event: ").append(event).append('\n');
+        int start = 0;
+        int nl;
+        while ((nl = data.indexOf('\n', start)) >= 0) {
+            sb.append("data: ").append(data, start, nl).append('\n');
+            start = nl + 1;
+        }
+        sb.append("data: ").append(data, start, data.length()).append("\n\n");
+        return write(sb);
+    }
+
+    /**
+     * Send an SSE comment line, which clients ignore; keeps idle connections alive
+     * through proxies.
+     */
+    public synchronized boolean comment(String text) {
+        if (!open) return false;
+        return write(": " + text + "\n\n");
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Stop sending; the caller completes the response.
+     */
+    public synchronized void close() {
+        open = false;
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    private boolean write(CharSequence chunk) {
+        byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+        if (async != null) {
+            if (pendingBytes + bytes.length > maxPendingBytes) {
+                close();
+                return false;
+            }
+            pending.addLast(bytes);
+            pendingBytes += bytes.length;
+            writePending();
+            return open;
+        }
+        try {
+            out.write(bytes);
+            out.flush();
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            open = false;
+            return false;
+        }
+    }
+
+    // Write and flush queued events for as long as the container can take them without
+    // blocking; isReady() returning false schedules onWritePossible() for the rest.
+    private synchronized void writePending() {
+        if (!open) return;
+        try {
+            while (async.isReady()) {
+                byte[] next = pending.pollFirst();
+                if (next == null) {
+                    if (!flushDue) return;
+                    flushDue = false;
+                    async.flush();
+                    continue;
+                }
+                pendingBytes -= next.length;
+                async.write(next);
+                flushDue = true;
+            }
+        } catch (IOException | IllegalStateException e) {
+            close();
+        }
+    }
+}
@@ -0,0 +1,561 @@
+import com.google.gson.stream.JsonWriter;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking client for the Gemini generateContent endpoint.
+ *
+ * Calls are dispatched with OkHttp's enqueue() and surface as CompletableFutures, so
+ * callers can share, combine or time out calls without a thread per call. At most maxInFlight
+ * calls run at once; up to maxQueued more wait in FIFO order, and anything beyond
+ * that fails immediately with RejectedException instead of piling up threads.
+ *
+ * A CircuitBreaker watches the error rate and latency of the calls; while it is open,
+ * calls fail immediately with CircuitOpenException so callers can fall back to stale
+ * data instead of waiting on a struggling upstream. Calls can optionally be hedged,
+ * see generate(String, boolean). stream() uses streamGenerateContent instead and hands
+ * the generated text to the caller chunk by chunk as Gemini produces it.
+ */
+public class GeminiClient {
+
+    public static final String DEFAULT_URL = "https://generativelanguage.googleapis.com/v1beta/models/gemini-pro-latest:generateContent";
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final AtomicBoolean NO_API_KEY_LOGGED = new AtomicBoolean();
+
+    private static final ScheduledExecutorService HEDGE_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "gemini-hedge-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final OkHttpClient http;
+    private final String url;
+    private final String streamUrl;
+    private final String apiKey;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final CircuitBreaker breaker;
+    private final long hedgeDelayNanos;
+    private final long hedgeMinNanos;
+    private final long hedgeMaxNanos;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private int inFlight;
+
+    // Latencies of recent successful calls, for the hedge delay.
+    private final long[] recentLatencies = new long[256];
+    private int recentCount;
+    private int recentNext;
+    private long hedgeDelayCached;
+    private long hedgeDelayComputedAt;
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong queueWaitNanosTotal = new AtomicLong();
+    private final AtomicLong queueWaitNanosMax = new AtomicLong();
+
+    private final LatencyHistogram queueWait;
+    private final LatencyHistogram succeededTime;
+    private final LatencyHistogram failedTime;
+    private final LongAdder rejectedTotal;
+    private final LongAdder shortCircuited;
+    private final LongAdder hedges;
+    private final LongAdder hedgeWins;
+
+    public GeminiClient(String name, OkHttpClient http, String url, String streamUrl, String apiKey, int maxInFlight, int maxQueued,
+                        CircuitBreaker breaker, long hedgeDelayMillis, long hedgeMinMillis, long hedgeMaxMillis) {
+        // Shares the dispatcher and connection pool of http; its per-host limit must not be
+        // below maxInFlight or calls would wait inside OkHttp uncounted (see HttpClients).
+        if (http.dispatcher().getMaxRequestsPerHost() < maxInFlight) {
+            Log.warn("gemini.per_host_limit_low", "client", name,
+                    "maxRequestsPerHost", http.dispatcher().getMaxRequestsPerHost(), "maxInFlight", maxInFlight);
+        }
+        this.http = http;
+        this.url = url;
+        this.streamUrl = streamUrl;
+        this.apiKey = apiKey;
+        if (!hasApiKey() && NO_API_KEY_LOGGED.compareAndSet(false, true)) {
+            // Once per process: every client reads the same GEMINI_API_KEY.
+            Log.warn("gemini.no_api_key", "client", name, "hint", "GEMINI_API_KEY not set; Gemini calls will likely fail");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.breaker = breaker;
+        this.hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(hedgeDelayMillis);
+        this.hedgeMinNanos = TimeUnit.MILLISECONDS.toNanos(hedgeMinMillis);
+        this.hedgeMaxNanos = TimeUnit.MILLISECONDS.toNanos(hedgeMaxMillis);
+
+        String labels = "client=\"" + name + "\"";
+        queueWait = Metrics.timer("gemini_queue_wait_seconds", "Time Gemini calls waited for an in-flight slot.", labels);
+        succeededTime = Metrics.timer("gemini_request_seconds", "Gemini call duration once started.", labels + ",outcome=\"success\"");
+        failedTime = Metrics.timer("gemini_request_seconds", "Gemini call duration once started.", labels + ",outcome=\"failure\"");
+        Metrics.gauge("gemini_in_flight", "Gemini calls currently running.", labels, () -> { synchronized (lock) { return inFlight; } });
+        Metrics.gauge("gemini_queued", "Gemini calls waiting for an in-flight slot.", labels, () -> { synchronized (lock) { return queue.size(); } });
+        rejectedTotal = Metrics.counter("gemini_rejected_total", "Gemini calls refused because the queue was full.", labels);
+        shortCircuited = Metrics.counter("gemini_short_circuited_total", "Gemini calls refused because the circuit breaker was open.", labels);
+        hedges = Metrics.counter("gemini_hedges_total", "Hedged second attempts started.", labels);
+        hedgeWins = Metrics.counter("gemini_hedge_wins_total", "Hedged attempts that answered first.", labels);
+        Metrics.gauge("gemini_breaker_open", "1 while the circuit breaker refuses calls (open or half-open), else 0.", labels,
+                () -> breaker.isClosed() ? 0 : 1);
+    }
+
+    /**
+     * Build a client from GEMINI_API_KEY, GEMINI_URL, GEMINI_STREAM_URL (default: GEMINI_URL
+     * with :streamGenerateContent and alt=sse), GEMINI_MAX_IN_FLIGHT (default 64) and
+     * GEMINI_MAX_QUEUED (default 256), with a breaker from CircuitBreaker.fromConfig().
+     * Hedged calls wait GEMINI_HEDGE_DELAY_MS (default 2000) until enough latencies are
+     * known, then the recent p95 clamped to GEMINI_HEDGE_MIN_MS..GEMINI_HEDGE_MAX_MS
+     * (defaults 200..5000). name labels the client's metrics.
+     */
+    public static GeminiClient fromConfig(String name, OkHttpClient http) {
+        String url = AppConfig.getString("GEMINI_URL", DEFAULT_URL);
+        return new GeminiClient(name, http, url,
+                AppConfig.getString("GEMINI_STREAM_URL", streamUrlFor(url)),
+                AppConfig.get("GEMINI_API_KEY"),
+                AppConfig.getInt("GEMINI_MAX_IN_FLIGHT", 64),
+                AppConfig.getInt("GEMINI_MAX_QUEUED", 256),
+                CircuitBreaker.fromConfig(),
+                AppConfig.getLong("GEMINI_HEDGE_DELAY_MS", 2000),
+                AppConfig.getLong("GEMINI_HEDGE_MIN_MS", 200),
+                AppConfig.getLong("GEMINI_HEDGE_MAX_MS", 5000));
+    }
+
+    /**
+     * The server-sent-events streaming endpoint for a generateContent URL.
+     */
+    static String streamUrlFor(String url) {
+        String stream = url.replace(":generateContent", ":streamGenerateContent");
+        return stream + (stream.indexOf('?') >= 0 ? "&" : "?") + "alt=sse";
+    }
+
+    /**
+     * True while the breaker is closed, nothing is queued and at most half of the
+     * in-flight slots are taken; background work should only call Gemini then.
+     */
+    public boolean hasSpareCapacity() {
+        if (!breaker.isClosed()) return false;
+        synchronized (lock) {
+            return queue.isEmpty() && inFlight < Math.max(1, maxInFlight / 2);
+        }
+    }
+
+    public boolean hasApiKey() {
+        return apiKey != null && !apiKey.isBlank();
+    }
+
+    /**
+     * Open a pooled (TLS) connection to the Gemini host ahead of the first real call, with
+     * a HEAD request that carries no API key and bypasses the limits and the breaker; the
+     * answer itself is ignored. Returns its HTTP status, or -1 if the host was unreachable.
+     */
+    public int preconnect() {
+        Request request = new Request.Builder().url(url).head().build();
+        try (Response response = http.newCall(request).execute()) {
+            return response.code();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Request body asking Gemini to answer a single text prompt.
+     */
+    public static String textPrompt(String prompt) {
+        StringWriter out = new StringWriter(prompt.length() + 64);
+        try (JsonWriter json = new JsonWriter(out)) {
+            json.beginObject().name("contents").beginArray()
+                    .beginObject().name("parts").beginArray()
+                    .beginObject().name("text").value(prompt).endObject()
+                    .endArray().endObject()
+                    .endArray().endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringWriter does not throw
+        }
+        return out.toString();
+    }
+
+    /**
+     * POST requestJson to generateContent. The future completes with the raw response
+     * body on a 2xx, with UpstreamException on any other status, with RejectedException
+     * if the in-flight limit and queue are both full, and with CircuitOpenException while
+     * the circuit breaker is open.
+     */
+    public CompletableFuture<String> generate(String requestJson) {
+        return generate(requestJson, false);
+    }
+
+    /**
+     * Like generate(requestJson), optionally hedged: if the call has not answered after
+     * the hedge delay (p95 of recent successful calls, clamped to the configured bounds),
+     * a second identical call is started and the first successful answer wins; the other
+     * call is cancelled. Hedges are only sent while the breaker is closed and an in-flight
+     * slot is free, never queued, so they cannot add to an overload.
+     */
+    public CompletableFuture<String> generate(String requestJson, boolean hedge) {
+        Request request = buildRequest(url, requestJson);
+        if (!breaker.tryAcquire()) {
+            shortCircuited.increment();
+            return CompletableFuture.failedFuture(new CircuitOpenException());
+        }
+        CompletableFuture<String> first = submit(request, ResponseBody::string, true);
+        if (!hedge || first.isDone()) return first;
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        first.whenComplete((v, e) -> settle(result, outstanding, v, e, false));
+        ScheduledFuture<?> timer = HEDGE_TIMER.schedule(() -> {
+            if (result.isDone() || !breaker.isClosed()) return;
+            outstanding.incrementAndGet();
+            CompletableFuture<String> second = submit(request, ResponseBody::string, false);
+            hedges.increment();
+            second.whenComplete((v, e) -> settle(result, outstanding, v, e, true));
+            result.whenComplete((v, e) -> abandon(second, e));
+        }, hedgeDelayNanos(), TimeUnit.NANOSECONDS);
+        result.whenComplete((v, e) -> {
+            timer.cancel(false);
+            abandon(first, e);
+        });
+        return result;
+    }
+
+    /**
+     * POST requestJson to streamGenerateContent and pass each piece of generated text to
+     * onText as its server-sent event arrives, on an OkHttp thread, in order. The future
+     * completes with the whole text once the stream ends and fails like generate() does.
+     * Streams share the in-flight limit, queue and breaker with generate() but are never
+     * hedged: text already handed out cannot be taken back.
+     *
+     * Cancelling or failing the future (e.g. orTimeout) cancels the HTTP call, so onText
+     * may already have seen part of the text.
+     */
+    public CompletableFuture<String> stream(String requestJson, Consumer<String> onText) {
+        Request request = buildRequest(streamUrl, requestJson);
+        if (!breaker.tryAcquire()) {
+            shortCircuited.increment();
+            return CompletableFuture.failedFuture(new CircuitOpenException());
+        }
+        return submit(request, body -> readEvents(body, onText), true);
+    }
+
+    /**
+     * Read "data:" lines of a text/event-stream body. Each event carries one partial
+     * generateContent response; its text goes to onText and is collected for the result.
+     */
+    private static String readEvents(ResponseBody body, Consumer<String> onText) throws IOException {
+        StringBuilder all = new StringBuilder();
+        StringBuilder data = new StringBuilder();
+        BufferedSource source = body.source();
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.isEmpty()) {
+                dispatchEvent(data, all, onText);
+            } else if (line.startsWith("data:")) {
+                if (data.length() > 0) data.append('\n');
+                data.append(line, line.length() > 5 && line.charAt(5) == ' ' ? 6 : 5, line.length());
+            }
+            // Comments (":") and event/id/retry fields carry nothing we use.
+        }
+        dispatchEvent(data, all, onText);
+        return all.toString();
+    }
+
+    private static void dispatchEvent(StringBuilder data, StringBuilder all, Consumer<String> onText) {
+        if (data.length() == 0) return;
+        String text = GeminiResponses.generatedText(data.toString());
+        data.setLength(0);
+        if (text != null && !text.isEmpty()) {
+            all.append(text);
+            onText.accept(text);
+        }
+    }
+
+    private void settle(CompletableFuture<String> result, AtomicInteger outstanding, String value, Throwable error, boolean isHedge) {
+        if (error == null) {
+            if (result.complete(value) && isHedge) hedgeWins.increment();
+        } else if (outstanding.decrementAndGet() == 0) {
+            result.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Stop an attempt whose hedged result is settled. Losers of a successful race are
+     * cancelled, which the breaker ignores; if the whole call failed (e.g. the caller's
+     * deadline passed) the attempt fails with the same error and counts against the breaker.
+     */
+    private static void abandon(CompletableFuture<String> attempt, Throwable resultError) {
+        if (resultError == null) {
+            attempt.cancel(false);
+        } else {
+            attempt.completeExceptionally(resultError);
+        }
+    }
+
+    private Request buildRequest(String url, String requestJson) {
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .post(RequestBody.create(requestJson, JSON))
+                .addHeader("Content-Type", "application/json");
+        if (hasApiKey()) builder.addHeader("X-goog-api-key", apiKey);
+        return builder.build();
+    }
+
+    private CompletableFuture<String> submit(Request request, BodyReader reader, boolean mayQueue) {
+        Pending p = new Pending(request, reader);
+        boolean startNow;
+        synchronized (lock) {
+            if (inFlight < maxInFlight) {
+                inFlight++;
+                startNow = true;
+            } else if (mayQueue && queue.size() < maxQueued) {
+                queue.addLast(p);
+                startNow = false;
+            } else {
+                if (mayQueue) {
+                    rejected.incrementAndGet();
+                    rejectedTotal.increment();
+                }
+                breaker.onIgnored();
+                p.future.completeExceptionally(new RejectedException(maxInFlight, maxQueued));
+                return p.future;
+            }
+        }
+        if (startNow) start(p);
+        return p.future;
+    }
+
+    private void start(Pending p) {
+        long startedAt = System.nanoTime();
+        long waited = startedAt - p.enqueuedAt;
+        queueWait.recordNanos(waited);
+        queueWaitNanosTotal.addAndGet(waited);
+        queueWaitNanosMax.accumulateAndGet(waited, Math::max);
+        started.incrementAndGet();
+
+        Call call = http.newCall(p.request);
+        // Cancelled, timed out by the caller, or lost a hedge race: stop the HTTP call too.
+        p.future.whenComplete((r, e) -> {
+            if (e != null) call.cancel();
+        });
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call c, IOException e) {
+                long elapsed = System.nanoTime() - startedAt;
+                failedTime.recordNanos(elapsed);
+                failed.incrementAndGet();
+                if (p.future.isCancelled()) {
+                    breaker.onIgnored();
+                } else {
+                    breaker.onFailure(elapsed);
+                }
+                finish();
+                p.future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call c, Response response) {
+                long elapsed;
+                try (Response resp = response) {
+                    ResponseBody body = resp.body();
+                    String text = body == null ? null : resp.isSuccessful() ? p.reader.read(body) : body.string();
+                    elapsed = System.nanoTime() - startedAt;
+                    if (text == null) {
+                        failedTime.recordNanos(elapsed);
+                        failed.incrementAndGet();
+                        breaker.onFailure(elapsed);
+                        finish();
+                        p.future.completeExceptionally(new UpstreamException(502, "{\"error\":\"Empty response from Gemini API\"}"));
+                    } else if (!resp.isSuccessful()) {
+                        failedTime.recordNanos(elapsed);
+                        failed.incrementAndGet();
+                        // 4xx other than 429 means our request was bad, not that Gemini is unhealthy.
+                        if (resp.code() >= 500 || resp.code() == 429) {
+                            breaker.onFailure(elapsed);
+                        } else {
+                            breaker.onSuccess(elapsed);
+                        }
+                        finish();
+                        p.future.completeExceptionally(new UpstreamException(resp.code(), text));
+                    } else {
+                        succeededTime.recordNanos(elapsed);
+                        succeeded.incrementAndGet();
+                        breaker.onSuccess(elapsed);
+                        recordLatency(elapsed);
+                        finish();
+                        p.future.complete(text);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // RuntimeException: a malformed stream event or a failing onText callback.
+                    elapsed = System.nanoTime() - startedAt;
+                    failedTime.recordNanos(elapsed);
+                    failed.incrementAndGet();
+                    if (p.future.isCancelled()) {
+                        breaker.onIgnored();
+                    } else {
+                        breaker.onFailure(elapsed);
+                    }
+                    finish();
+                    p.future.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    private void recordLatency(long nanos) {
+        synchronized (recentLatencies) {
+            recentLatencies[recentNext] = nanos;
+            recentNext = (recentNext + 1) % recentLatencies.length;
+            if (recentCount < recentLatencies.length) recentCount++;
+        }
+    }
+
+    /**
+     * p95 of the last successful calls, recomputed at most once a second, or the
+     * configured default until enough calls have been seen.
+     */
+    private long hedgeDelayNanos() {
+        synchronized (recentLatencies) {
+            if (recentCount < MIN_HEDGE_SAMPLES) return hedgeDelayNanos;
+            long now = System.nanoTime();
+            if (hedgeDelayComputedAt == 0 || now - hedgeDelayComputedAt > TimeUnit.SECONDS.toNanos(1)) {
+                long[] sorted = Arrays.copyOf(recentLatencies, recentCount);
+                Arrays.sort(sorted);
+                long p95 = sorted[(int) Math.ceil(0.95 * sorted.length) - 1];
+                hedgeDelayCached = Math.max(hedgeMinNanos, Math.min(hedgeMaxNanos, p95));
+                hedgeDelayComputedAt = now;
+            }
+            return hedgeDelayCached;
+        }
+    }
+
+    /** Release our in-flight slot and hand it to the oldest queued call, if any. */
+    private void finish() {
+        Pending next;
+        synchronized (lock) {
+            // Skip calls whose caller gave up while they were queued.
+            while ((next = queue.pollFirst()) != null && next.future.isDone()) {
+                breaker.onIgnored();
+            }
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+        }
+        start(next);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        synchronized (lock) {
+            m.put("inFlight", inFlight);
+            m.put("queued", queue.size());
+        }
+        m.put("maxInFlight", maxInFlight);
+        m.put("maxQueued", maxQueued);
+        m.put("started", started.get());
+        m.put("succeeded", succeeded.get());
+        m.put("failed", failed.get());
+        m.put("rejected", rejected.get());
+        long n = started.get();
+        m.put("queueWaitMillisAvg", n == 0 ? 0.0 : queueWaitNanosTotal.get() / 1_000_000.0 / n);
+        m.put("queueWaitMillisMax", TimeUnit.NANOSECONDS.toMillis(queueWaitNanosMax.get()));
+        m.put("shortCircuited", shortCircuited.sum());
+        m.put("hedges", hedges.sum());
+        m.put("hedgeWins", hedgeWins.sum());
+        m.put("hedgeDelayMillis", TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos()));
+        m.put("breaker", breaker.snapshot());
+        return m;
+    }
+
+    /**
+     * Turns a successful response body into the call's result.
+     */
+    private interface BodyReader {
+        String read(ResponseBody body) throws IOException;
+    }
+
+    private static final class Pending {
+        final Request request;
+        final BodyReader reader;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final long enqueuedAt = System.nanoTime();
+
+        Pending(Request request, BodyReader reader) {
+            this.request = request;
+            this.reader = reader;
+        }
+    }
+
+    /**
+     * Gemini answered with a non-2xx status (or no body at all).
+     */
+    public static class UpstreamException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+        private final String body;
+
+        public UpstreamException(int statusCode, String body) {
+            super("Gemini HTTP error: " + statusCode);
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public int getStatusCode() { return statusCode; }
+        public String getBody() { return body; }
+    }
+
+    /**
+     * The call was refused locally because too many Gemini calls are already outstanding.
+     */
+    public static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(int maxInFlight, int maxQueued) {
+            super("Too many concurrent Gemini requests (" + maxInFlight + " in flight, " + maxQueued + " queued)");
+        }
+
+        protected RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The call was refused locally because the circuit breaker is open.
+     */
+    public static class CircuitOpenException extends RejectedException {
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException() {
+            super("Gemini is temporarily unavailable (circuit breaker open)");
+        }
+    }
+}
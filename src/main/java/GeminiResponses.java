@@ -0,0 +1,156 @@
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Streaming extraction of the generated text from a Gemini generateContent response.
+ *
+ * The response is walked token by token with Gson's JsonReader and parsing stops at the
+ * first text found, so no object tree is built and the rest of the payload (safety
+ * ratings, usage metadata, further candidates) is never materialized.
+ *
+ * Lookup order, first match wins:
+ * - candidates[0].content.parts[*].text (the documented v1beta shape)
+ * - candidates[0].content[*].text (older/alternative shape)
+ * - candidates[0].output
+ * - top-level output_text, then top-level text
+ */
+public final class GeminiResponses {
+
+    private GeminiResponses() {}
+
+    /**
+     * The generated text in json, or null if none of the known fields is present.
+     * Throws JsonParseException if json is not a well-formed JSON object.
+     */
+    public static String generatedText(String json) {
+        return generatedText(new StringReader(json));
+    }
+
+    public static String generatedText(Reader json) {
+        try (JsonReader in = new JsonReader(json)) {
+            return generatedText(in);
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonParseException("Malformed Gemini response: " + e.getMessage(), e);
+        }
+    }
+
+    private static String generatedText(JsonReader in) throws IOException {
+        String outputText = null;
+        String text = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "candidates":
+                    String found = firstCandidateText(in);
+                    if (found != null) return found;
+                    break;
+                case "output_text":
+                    outputText = stringOrSkip(in);
+                    break;
+                case "text":
+                    text = stringOrSkip(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        return outputText != null ? outputText : text;
+    }
+
+    /**
+     * Text (or output) of candidates[0]. Leaves the reader after the candidates array
+     * when nothing was found; when something was found the caller stops reading anyway.
+     */
+    private static String firstCandidateText(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY) {
+            in.skipValue();
+            return null;
+        }
+        in.beginArray();
+        if (!in.hasNext()) {
+            in.endArray();
+            return null;
+        }
+        String output = null;
+        if (in.peek() == JsonToken.BEGIN_OBJECT) {
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "content":
+                        String found = contentText(in);
+                        if (found != null) return found;
+                        break;
+                    case "output":
+                        output = stringOrSkip(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+        } else {
+            in.skipValue();
+        }
+        if (output != null) return output;
+        while (in.hasNext()) in.skipValue();
+        in.endArray();
+        return null;
+    }
+
+    private static String contentText(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case BEGIN_ARRAY:
+                return firstTextInArray(in);
+            case BEGIN_OBJECT:
+                in.beginObject();
+                while (in.hasNext()) {
+                    if ("parts".equals(in.nextName()) && in.peek() == JsonToken.BEGIN_ARRAY) {
+                        String found = firstTextInArray(in);
+                        if (found != null) return found;
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+                return null;
+            default:
+                in.skipValue();
+                return null;
+        }
+    }
+
+    /**
+     * The "text" string of the first object in the array that has one.
+     */
+    private static String firstTextInArray(JsonReader in) throws IOException {
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                in.skipValue();
+                continue;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                if ("text".equals(in.nextName()) && in.peek() == JsonToken.STRING) {
+                    return in.nextString();
+                }
+                in.skipValue();
+            }
+            in.endObject();
+        }
+        in.endArray();
+        return null;
+    }
+
+    private static String stringOrSkip(JsonReader in) throws IOException {
+        JsonToken t = in.peek();
+        if (t == JsonToken.STRING || t == JsonToken.NUMBER) return in.nextString();
+        in.skipValue();
+        return null;
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate request frequency per key, for finding the hottest pincodes in constant
+ * memory regardless of how many distinct keys are seen.
+ *
+ * Counts live in a count-min sketch (depth rows of width counters, one hashed counter
+ * per row, estimate = minimum over the rows, updated conservatively so only the rows at
+ * that minimum grow). Estimates can overcount through collisions but never undercount.
+ * Alongside it, the maxTracked keys with the highest estimates are remembered by name so
+ * top() can list them; a new key displaces the coldest tracked one once it is hotter.
+ *
+ * decay() halves every count, so the ranking follows recent traffic rather than all-time
+ * totals.
+ */
+public class HotKeys {
+
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L,
+            0xFF51AFD7ED558CCDL, 0xC4CEB9FE1A85EC53L, 0x27D4EB2F165667C5L, 0x94D049BB133111EBL};
+
+    private final int width;
+    private final long[][] counts;
+    private final int maxTracked;
+    private final Map<String, Long> tracked = new HashMap<>();
+    private long total;
+
+    public HotKeys(int width, int depth, int maxTracked) {
+        this.width = Math.max(16, width);
+        this.counts = new long[Math.max(1, Math.min(depth, SEEDS.length))][this.width];
+        this.maxTracked = Math.max(1, maxTracked);
+    }
+
+    /**
+     * Count one occurrence of key and return its new estimate.
+     */
+    public synchronized long add(String key) {
+        total++;
+        int h = key.hashCode();
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < counts.length; row++) {
+            min = Math.min(min, counts[row][index(h, row)]);
+        }
+        long estimate = min + 1;
+        for (int row = 0; row < counts.length; row++) {
+            int i = index(h, row);
+            if (counts[row][i] < estimate) counts[row][i] = estimate;
+        }
+        track(key, estimate);
+        return estimate;
+    }
+
+    public synchronized long estimate(String key) {
+        int h = key.hashCode();
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < counts.length; row++) {
+            min = Math.min(min, counts[row][index(h, row)]);
+        }
+        return min;
+    }
+
+    private void track(String key, long estimate) {
+        if (tracked.containsKey(key) || tracked.size() < maxTracked) {
+            tracked.put(key, estimate);
+            return;
+        }
+        String coldest = null;
+        long coldestCount = Long.MAX_VALUE;
+        for (Map.Entry<String, Long> e : tracked.entrySet()) {
+            if (e.getValue() < coldestCount) {
+                coldest = e.getKey();
+                coldestCount = e.getValue();
+            }
+        }
+        if (estimate > coldestCount) {
+            tracked.remove(coldest);
+            tracked.put(key, estimate);
+        }
+    }
+
+    /**
+     * Up to n tracked keys with an estimate of at least minCount, hottest first.
+     */
+    public synchronized List<Map.Entry<String, Long>> top(int n, long minCount) {
+        List<Map.Entry<String, Long>> out = new ArrayList<>();
+        for (Map.Entry<String, Long> e : tracked.entrySet()) {
+            if (e.getValue() >= minCount) out.add(Map.entry(e.getKey(), e.getValue()));
+        }
+        out.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return out.size() > n ? new ArrayList<>(out.subList(0, n)) : out;
+    }
+
+    /**
+     * Halve all counts; tracked keys that drop to zero are forgotten.
+     */
+    public synchronized void decay() {
+        for (long[] row : counts) {
+            for (int i = 0; i < row.length; i++) row[i] >>>= 1;
+        }
+        tracked.replaceAll((k, v) -> v >>> 1);
+        tracked.values().removeIf(v -> v == 0);
+        total >>>= 1;
+    }
+
+    public synchronized int trackedCount() {
+        return tracked.size();
+    }
+
+    public synchronized long total() {
+        return total;
+    }
+
+    private int index(int hash, int row) {
+        long x = (hash ^ SEEDS[row]) * 0xBF58476D1CE4E5B9L;
+        x ^= x >>> 31;
+        x *= 0x94D049BB133111EBL;
+        x ^= x >>> 29;
+        return (int) ((x & Long.MAX_VALUE) % width);
+    }
+}
@@ -0,0 +1,186 @@
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The process-wide OkHttpClient used for all outbound HTTP (Gemini).
+ *
+ * Sharing one client means one dispatcher and one connection pool, so TCP and TLS
+ * handshakes to the Gemini host are paid once and reused by every caller, and with
+ * HTTP/2 concurrent calls are multiplexed over the same connection. Callers that need
+ * different settings should derive a client with shared().newBuilder(), which keeps
+ * the pool and dispatcher.
+ *
+ * Configuration:
+ *
+ * - HTTP_CONNECT_TIMEOUT_MS (default: 5000)
+ * - HTTP_READ_TIMEOUT_MS (default: 30000)
+ * - HTTP_WRITE_TIMEOUT_MS (default: 10000)
+ * - HTTP_CALL_TIMEOUT_MS (default: 60000) whole call including retries and redirects, 0 = none
+ * - HTTP_MAX_REQUESTS (default: 256) and HTTP_MAX_REQUESTS_PER_HOST (default: 128); the
+ *   per-host limit should be at least the sum of GEMINI_MAX_IN_FLIGHT across clients
+ * - HTTP_POOL_MAX_IDLE (default: 16) and HTTP_POOL_KEEP_ALIVE_SECONDS (default: 300)
+ * - HTTP_HTTP2 (default: true) offer HTTP/2 via ALPN, falling back to HTTP/1.1
+ *
+ * Every call reports DNS, connect, TLS, time-to-first-byte and total durations to
+ * Metrics (http_client_phase_seconds) through an EventListener.
+ */
+public final class HttpClients {
+
+    private static volatile OkHttpClient shared;
+
+    private HttpClients() {}
+
+    public static OkHttpClient shared() {
+        OkHttpClient c = shared;
+        if (c != null) return c;
+        synchronized (HttpClients.class) {
+            if (shared == null) {
+                shared = create();
+            }
+            return shared;
+        }
+    }
+
+    private static OkHttpClient create() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(AppConfig.getInt("HTTP_MAX_REQUESTS", 256));
+        dispatcher.setMaxRequestsPerHost(AppConfig.getInt("HTTP_MAX_REQUESTS_PER_HOST", 128));
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new okhttp3.ConnectionPool(
+                        AppConfig.getInt("HTTP_POOL_MAX_IDLE", 16),
+                        AppConfig.getLong("HTTP_POOL_KEEP_ALIVE_SECONDS", 300), TimeUnit.SECONDS))
+                .protocols(AppConfig.getBoolean("HTTP_HTTP2", true)
+                        ? List.of(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : List.of(Protocol.HTTP_1_1))
+                .connectTimeout(AppConfig.getLong("HTTP_CONNECT_TIMEOUT_MS", 5000), TimeUnit.MILLISECONDS)
+                .readTimeout(AppConfig.getLong("HTTP_READ_TIMEOUT_MS", 30000), TimeUnit.MILLISECONDS)
+                .writeTimeout(AppConfig.getLong("HTTP_WRITE_TIMEOUT_MS", 10000), TimeUnit.MILLISECONDS)
+                .callTimeout(AppConfig.getLong("HTTP_CALL_TIMEOUT_MS", 60000), TimeUnit.MILLISECONDS)
+                .eventListenerFactory(call -> new TimingListener())
+                .build();
+
+        Metrics.gauge("http_client_connections", "Connections in the shared HTTP client pool.", "", () -> client.connectionPool().connectionCount());
+        Metrics.gauge("http_client_idle_connections", "Idle connections in the shared HTTP client pool.", "", () -> client.connectionPool().idleConnectionCount());
+        Metrics.gauge("http_client_running_calls", "Calls executing in the shared HTTP client.", "", dispatcher::runningCallsCount);
+        Metrics.gauge("http_client_queued_calls", "Calls waiting in the shared HTTP client dispatcher.", "", dispatcher::queuedCallsCount);
+        return client;
+    }
+
+    /**
+     * Pool and dispatcher occupancy of the shared client.
+     */
+    public static Map<String, Object> snapshot() {
+        OkHttpClient c = shared();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("connections", c.connectionPool().connectionCount());
+        m.put("idleConnections", c.connectionPool().idleConnectionCount());
+        m.put("runningCalls", c.dispatcher().runningCallsCount());
+        m.put("queuedCalls", c.dispatcher().queuedCallsCount());
+        m.put("maxRequestsPerHost", c.dispatcher().getMaxRequestsPerHost());
+        m.put("protocols", c.protocols().toString());
+        m.put("newConnections", TimingListener.newConnections.sum());
+        m.put("reusedConnections", TimingListener.reusedConnections.sum());
+        return m;
+    }
+
+    /**
+     * Per-call phase timings. OkHttp creates one listener per call and delivers that
+     * call's events one after another, so plain fields are enough.
+     */
+    private static final class TimingListener extends EventListener {
+        private static final String NAME = "http_client_phase_seconds";
+        private static final String HELP = "Duration of outbound HTTP call phases.";
+        private static final LatencyHistogram DNS = Metrics.timer(NAME, HELP, "phase=\"dns\"");
+        private static final LatencyHistogram CONNECT = Metrics.timer(NAME, HELP, "phase=\"connect\"");
+        private static final LatencyHistogram TLS = Metrics.timer(NAME, HELP, "phase=\"tls\"");
+        private static final LatencyHistogram TTFB = Metrics.timer(NAME, HELP, "phase=\"ttfb\"");
+        private static final LatencyHistogram CALL = Metrics.timer(NAME, HELP, "phase=\"call\"");
+        static final LongAdder newConnections = Metrics.counter("http_client_connections_acquired_total", "Connections acquired by calls.", "reused=\"false\"");
+        static final LongAdder reusedConnections = Metrics.counter("http_client_connections_acquired_total", "Connections acquired by calls.", "reused=\"true\"");
+
+        private long callStart;
+        private long dnsStart;
+        private long connectStart;
+        private long tlsStart;
+        private long requestStart;
+        private boolean connected;
+
+        @Override
+        public void callStart(Call call) {
+            callStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> addresses) {
+            DNS.recordNanos(System.nanoTime() - dnsStart);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+            connectStart = System.nanoTime();
+            connected = true;
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            tlsStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            TLS.recordNanos(System.nanoTime() - tlsStart);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+            CONNECT.recordNanos(System.nanoTime() - connectStart);
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            (connected ? newConnections : reusedConnections).increment();
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            requestStart = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            if (requestStart != 0) TTFB.recordNanos(System.nanoTime() - requestStart);
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            CALL.recordNanos(System.nanoTime() - callStart);
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            CALL.recordNanos(System.nanoTime() - callStart);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Minimal structured logger: one line per event, {@code ts level event key=value ...}.
+ *
+ * Lines below LOG_LEVEL (DEBUG, INFO, WARN, ERROR; default INFO) are dropped before any
+ * formatting. Payload dumps should additionally be guarded with sampled(), which lets
+ * through a LOG_SAMPLE_RATE fraction (default 0.01) of calls, and shortened with
+ * truncate(). DEBUG/INFO go to stdout, WARN/ERROR to stderr (with the stack trace of
+ * an attached error).
+ */
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int MAX_VALUE_CHARS = 512;
+
+    private static final Level threshold = parseLevel(AppConfig.getString("LOG_LEVEL", "INFO"));
+    private static final double sampleRate = AppConfig.getDouble("LOG_SAMPLE_RATE", 0.01);
+
+    private Log() {}
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    /**
+     * True for roughly LOG_SAMPLE_RATE of calls.
+     */
+    public static boolean sampled() {
+        return sampleRate >= 1.0 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    public static void debug(String event, Object... keyValues) {
+        if (isEnabled(Level.DEBUG)) write(Level.DEBUG, event, null, keyValues);
+    }
+
+    public static void info(String event, Object... keyValues) {
+        if (isEnabled(Level.INFO)) write(Level.INFO, event, null, keyValues);
+    }
+
+    public static void warn(String event, Object... keyValues) {
+        if (isEnabled(Level.WARN)) write(Level.WARN, event, null, keyValues);
+    }
+
+    public static void error(String event, Throwable error, Object... keyValues) {
+        if (isEnabled(Level.ERROR)) write(Level.ERROR, event, error, keyValues);
+    }
+
+    /**
+     * s cut to at most max characters, with the original length appended when cut.
+     */
+    public static String truncate(String s, int max) {
+        if (s == null || s.length() <= max) return s;
+        return s.substring(0, max) + "...(" + s.length() + " chars)";
+    }
+
+    private static void write(Level level, String event, Throwable error, Object[] keyValues) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(Instant.now()).append(' ').append(level).append(' ').append(event);
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            sb.append(' ').append(keyValues[i]).append('=');
+            appendValue(sb, keyValues[i + 1]);
+        }
+        if (error != null) {
+            sb.append(" error=");
+            appendValue(sb, error.toString());
+        }
+        if (level.compareTo(Level.WARN) >= 0) {
+            System.err.println(sb);
+            if (error != null) error.printStackTrace();
+        } else {
+            System.out.println(sb);
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, Object value) {
+        String s = truncate(String.valueOf(value), MAX_VALUE_CHARS);
+        boolean quote = s.isEmpty() || s.indexOf(' ') >= 0 || s.indexOf('"') >= 0 || s.indexOf('=') >= 0 || s.indexOf('\n') >= 0;
+        if (!quote) {
+            sb.append(s);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else if (c == '\r') sb.append("\\r");
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static Level parseLevel(String s) {
+        try {
+            return Level.valueOf(s.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid LOG_LEVEL value '" + s + "', falling back to INFO");
+            return Level.INFO;
+        }
+    }
+}
@@ -1,27 +1,65 @@
 import static spark.Spark.*;
 
 import com.google.gson.Gson;
-import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import com.google.gson.stream.JsonWriter;
+import spark.Request;
+import spark.Response;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainApi {
 
     private static final AtmService atmService = new AtmService();
     private static final Gson gson = new Gson();
-    private static final OkHttpClient httpClient = new OkHttpClient.Builder()
-            .readTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-            .build();
-    private static final MediaType JSON_MEDIA_TYPE = MediaType.get("application/json; charset=utf-8");
+    private static final GeminiClient geminiClient = GeminiClient.fromConfig("generate", HttpClients.shared());
+    // REPORT_ACK_MODE=flushed acknowledges /api/report only after the report is committed;
+    // the default (queued) acknowledges as soon as it is accepted into the write-behind queue.
+    private static final boolean ACK_AFTER_FLUSH = "flushed".equalsIgnoreCase(AppConfig.getString("REPORT_ACK_MODE", "queued"));
+    // How long an async request may wait for Gemini, or for its report to be committed, before we answer 504.
+    private static final long ASYNC_TIMEOUT_MS = AppConfig.getLong("GEMINI_ASYNC_TIMEOUT_MS", 45000);
+    // Per-IP and global token buckets in front of the endpoints that can reach Gemini.
+    private static final RateLimiter rateLimiter = AppConfig.getBoolean("RATE_LIMIT_ENABLED", true) ? RateLimiter.fromConfig() : null;
+    // Use the first X-Forwarded-For entry as the client IP; only enable behind a trusted proxy.
+    private static final boolean TRUST_FORWARDED_FOR = AppConfig.getBoolean("RATE_LIMIT_TRUST_FORWARDED_FOR", false);
+    // Clients that submitted a report in the last READ_YOUR_WRITES_MS read reports from the
+    // primary, so replica lag cannot hide their own report from them. Keyed by clientIp()
+    // like the rate limiter: behind a proxy that is the proxy's address unless
+    // RATE_LIMIT_TRUST_FORWARDED_FOR is set, and then one report sends every client's reads
+    // to the primary for the window.
+    private static final TtlCache<String, Boolean> recentReporters = new TtlCache<>(
+            AppConfig.getInt("READ_YOUR_WRITES_MAX_CLIENTS", 100000), AppConfig.getLong("READ_YOUR_WRITES_MS", 5000));
+    // Upper bound on atm= parameters of one /api/atms/events stream.
+    private static final int MAX_ATMS_PER_STREAM = AppConfig.getInt("STATUS_STREAM_MAX_ATMS", 500);
+    private static final int MAX_PENDING_EVENT_BYTES = AppConfig.getInt("STATUS_STREAM_MAX_PENDING_BYTES", 256 * 1024);
+    // On shutdown, how long /ready reports "draining" before new requests are refused; set
+    // it to a few load-balancer probe intervals so traffic moves away first.
+    private static final long SHUTDOWN_DELAY_MS = AppConfig.getLong("SHUTDOWN_DELAY_MS", 0);
+    // Budget for in-flight requests to finish and queued reports to be written on shutdown.
+    private static final long SHUTDOWN_TIMEOUT_MS = AppConfig.getLong("SHUTDOWN_TIMEOUT_MS", 20000);
+
+    private enum State { STARTING, READY, DRAINING, STOPPING }
+
+    private static volatile State state = State.STARTING;
+    private static volatile Warmup warmup;
 
     public static void main(String[] args) {
+        SparkAsync.install();
         // Allow overriding the port via system property or environment variable (PORT)
         String portProp = System.getProperty("PORT");
         if (portProp == null || portProp.trim().isEmpty()) {
@@ -32,29 +70,50 @@ public class MainApi {
             try {
                 listenPort = Integer.parseInt(portProp);
             } catch (NumberFormatException e) {
-                System.err.println("Invalid PORT value '" + portProp + "', falling back to 8080");
+                Log.warn("startup.invalid_port", "value", portProp, "using", 8080);
             }
         }
         port(listenPort);
+        warmup = new Warmup(atmService, geminiClient, listenPort);
 
         // Serve static files from ./frontend/dist relative to the current working directory
         File distDir = new File(System.getProperty("user.dir"), "frontend/dist");
         if (!distDir.exists() || !distDir.isDirectory()) {
-            System.err.println("Static folder not found at " + distDir.getAbsolutePath() + " - creating it.");
+            Log.warn("startup.static_dir_missing", "path", distDir.getAbsolutePath());
             boolean ok = distDir.mkdirs();
             if (!ok) {
-                System.err.println("Failed to create static folder: " + distDir.getAbsolutePath());
+                Log.warn("startup.static_dir_create_failed", "path", distDir.getAbsolutePath());
             }
         }
         String staticDir = distDir.getAbsolutePath();
         staticFiles.externalLocation(staticDir);
 
+        RequestMetrics.register("/api/atms", "/api/atms/search", "/api/atms/stream", "/api/atms/events", "/api/stats", "/api/test", "/api/generate", "/api/report", "/metrics", "/ready");
+        before((request, response) -> RequestMetrics.begin(request.raw()));
+        afterAfter((request, response) -> RequestMetrics.end(request.raw(), response.raw()));
+
         before((request, response) -> {
             response.header("Access-Control-Allow-Origin", "*");
             response.header("Access-Control-Allow-Methods", "GET,POST,PUT,DELETE,OPTIONS");
             response.header("Access-Control-Allow-Headers", "Content-Type,Authorization");
         });
 
+        // Shutting down: refuse new requests so the in-flight ones can drain.
+        before((request, response) -> {
+            if (state == State.STOPPING && !"/ready".equals(request.pathInfo())) {
+                response.type("application/json");
+                response.header("Connection", "close");
+                halt(503, gson.toJson(new SimpleStatus("error", "Shutting down")));
+            }
+        });
+
+        if (rateLimiter != null) {
+            before("/api/atms", MainApi::admit);
+            before("/api/atms/stream", MainApi::admit);
+            before("/api/atms/events", MainApi::admit);
+            before("/api/generate", MainApi::admit);
+        }
+
         options("/*", (request, response) -> {
             String accessControlRequestHeaders = request.headers("Access-Control-Request-Headers");
             if (accessControlRequestHeaders != null) {
@@ -68,92 +127,109 @@ public class MainApi {
         });
 
         get("/api/atms", (req, res) -> {
-            String pincode = req.queryParams("pincode");
-            if (pincode == null) {
-                pincode = "";
+            if (req.queryParams("lat") != null || req.queryParams("lon") != null) {
+                return nearbyAtms(req, res);
             }
-            try {
-                List<AtmLocation> list = atmService.findAtmsNearPincode(pincode);
-                res.type("application/json");
-                return gson.toJson(list);
-            } catch (Exception ex) {
+            String pincode = req.queryParams("pincode") != null ? req.queryParams("pincode") : "";
+            boolean primary = readsPrimary(req);
+            res.type("application/json");
+            CompletableFuture<Reply> reply = atmService.findAtmListAsync(pincode).handle((list, err) -> {
+                if (err == null) return new Reply(200, out -> writeAtms(out, list, primary));
                 // Log and return a JSON error so the frontend isn't given HTML
-                System.err.println("Error in /api/atms: " + ex.getMessage());
-                ex.printStackTrace();
-                res.type("application/json");
-                res.status(500);
-                return gson.toJson(new SimpleStatus("error", ex.toString()));
-            }
+                Throwable cause = unwrap(err);
+                Log.error("atms.failed", cause, "pincode", pincode);
+                return new Reply(500, gson.toJson(new SimpleStatus("error", cause.toString())));
+            });
+            return respond(req, res, reply);
+        });
+
+        get("/api/atms/search", MainApi::searchAtms);
+        get("/api/atms/stream", MainApi::streamAtms);
+        get("/api/atms/events", MainApi::atmEvents);
+
+        get("/api/stats", (req, res) -> {
+            res.type("application/json");
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("dbPool", DatabaseConnector.poolStats());
+            stats.put("dbReplicas", DatabaseConnector.replicaPoolStats());
+            stats.put("atmListCache", atmService.cacheStats());
+            stats.put("prefetch", atmService.prefetchStats());
+            stats.put("statusStreams", atmService.statusStreamStats());
+            stats.put("reportRetention", atmService.retentionStats());
+            stats.put("geminiAtmLookups", atmService.geminiStats());
+            stats.put("geminiGenerate", geminiClient.snapshot());
+            stats.put("httpClient", HttpClients.snapshot());
+            stats.put("reportWriter", atmService.reportWriterStats());
+            stats.put("geoIndex", atmService.geoIndexStats());
+            stats.put("searchIndex", atmService.searchIndexStats());
+            stats.put("warmup", warmup.snapshot());
+            return gson.toJson(stats);
+        });
+
+        // Readiness for load balancers: 200 once warm-up is done, 503 while starting or draining.
+        get("/ready", (req, res) -> {
+            res.type("application/json");
+            State s = state;
+            if (s != State.READY) res.status(503);
+            return gson.toJson(new SimpleStatus(s.name().toLowerCase(), null));
+        });
+
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4; charset=utf-8");
+            return Metrics.scrape();
         });
 
         get("/api/test", (req, res) -> {
             res.type("application/json");
-            System.out.println("Received request for /api/test");
             return "{\"status\":\"ok\"}";
         });
 
         post("/api/generate", (req, res) -> {
-            System.out.println("Received request for /api/generate");
             res.type("application/json");
 
-            String apiKey = System.getProperty("GEMINI_API_KEY", System.getenv("GEMINI_API_KEY"));
-            if (apiKey == null || apiKey.trim().isEmpty()) {
-                System.err.println("GEMINI_API_KEY is not set!");
+            if (!geminiClient.hasApiKey()) {
+                Log.error("generate.no_api_key", null);
                 res.status(500);
                 return "{\"error\":\"API key not configured. Please set GEMINI_API_KEY environment variable.\"}";
             }
-            System.out.println("GEMINI_API_KEY found.");
 
+            String geminiRequestBody;
             try {
                 String bodyText = req.body();
-                System.out.println("Request body: " + bodyText);
-
-                JSONObject requestBody = new JSONObject(bodyText);
-                String prompt = requestBody.getString("prompt");
-                System.out.println("Extracted prompt: " + prompt);
-
-                JSONObject contentPart = new JSONObject();
-                contentPart.put("text", prompt);
 
-                JSONArray contentsArray = new JSONArray();
-                contentsArray.put(new JSONObject().put("parts", new JSONArray().put(contentPart)));
-
-                JSONObject geminiRequestBody = new JSONObject();
-                geminiRequestBody.put("contents", contentsArray);
-                System.out.println("Constructed Gemini request body: " + geminiRequestBody);
-
-                RequestBody requestBodyJson = RequestBody.create(geminiRequestBody.toString(), JSON_MEDIA_TYPE);
-
-                Request request = new Request.Builder()
-                        .url("https://generativelanguage.googleapis.com/v1beta/models/gemini-pro-latest:generateContent")
-                        .post(requestBodyJson)
-                        .addHeader("X-goog-api-key", apiKey)
-                        .addHeader("Content-Type", "application/json")
-                        .build();
-
-                System.out.println("Sending request to Gemini API...");
-                try (Response response = httpClient.newCall(request).execute()) {
-                    if (response.body() == null) {
-                        System.err.println("Gemini API returned empty body");
-                        res.status(502);
-                        return "{\"error\":\"Empty response from Gemini API\"}";
-                    }
-                    String responseBody = response.body().string();
-                    System.out.println("Received response from Gemini. Status: " + response.code());
-                    if (!response.isSuccessful()) {
-                        System.err.println("Gemini API error: " + responseBody);
-                        res.status(response.code());
-                        return responseBody;
-                    }
-                    System.out.println("Gemini response body: " + responseBody);
-                    return responseBody;
+                GenerateRequest request = gson.fromJson(bodyText, GenerateRequest.class);
+                if (request == null || request.prompt == null) throw new IllegalArgumentException("Missing prompt in request body");
+                String prompt = request.prompt;
+                geminiRequestBody = GeminiClient.textPrompt(prompt);
+                if (Log.isEnabled(Log.Level.DEBUG) && Log.sampled()) {
+                    Log.debug("generate.request", "bodyChars", bodyText.length(), "prompt", Log.truncate(prompt, 200));
                 }
             } catch (Exception e) {
-                System.err.println("Error in /api/generate endpoint:");
-                e.printStackTrace();
+                Log.error("generate.bad_request", e);
                 res.status(500);
                 return "{\"error\":\"" + e.getMessage() + "\"}";
             }
+
+            CompletableFuture<Reply> reply = geminiClient.generate(geminiRequestBody).handle((responseBody, err) -> {
+                if (err == null) {
+                    if (Log.isEnabled(Log.Level.DEBUG) && Log.sampled()) {
+                        Log.debug("generate.response", "bodyChars", responseBody.length(), "body", Log.truncate(responseBody, 200));
+                    }
+                    return new Reply(200, responseBody);
+                }
+                Throwable cause = unwrap(err);
+                if (cause instanceof GeminiClient.UpstreamException) {
+                    GeminiClient.UpstreamException upstream = (GeminiClient.UpstreamException) cause;
+                    Log.warn("generate.upstream_error", "status", upstream.getStatusCode(), "body", Log.truncate(upstream.getBody(), 200));
+                    return new Reply(upstream.getStatusCode(), upstream.getBody());
+                }
+                if (cause instanceof GeminiClient.RejectedException) {
+                    return new Reply(503, "{\"error\":\"" + cause.getMessage() + "\"}").retryAfter(1);
+                }
+                Log.error("generate.failed", cause);
+                return new Reply(500, "{\"error\":\"" + cause.getMessage() + "\"}");
+            });
+            return respond(req, res, reply);
         });
 
         post("/api/report", (req, res) -> {
@@ -165,10 +241,441 @@ public class MainApi {
                 return gson.toJson(new SimpleStatus("error", "missing name or address"));
             }
 
-            atmService.submitReport(data.name, data.address, data.cashStatus, data.depositStatus, data.passbookStatus);
             res.type("application/json");
-            return gson.toJson(new SimpleStatus("success", null));
+            CompletableFuture<Void> written = atmService.submitReport(data.name, data.address, data.cashStatus, data.depositStatus, data.passbookStatus);
+            // Only accepted reports open the window; it restarts once the report is committed,
+            // since replicas lag from there. A refused report (queue full) leaves reads alone.
+            String client = clientIp(req);
+            if (!written.isCompletedExceptionally()) recentReporters.put(client, Boolean.TRUE);
+            written.thenRun(() -> recentReporters.put(client, Boolean.TRUE));
+            if (!ACK_AFTER_FLUSH && !written.isCompletedExceptionally()) {
+                return gson.toJson(new SimpleStatus("success", null));
+            }
+            CompletableFuture<Reply> reply = written.handle((ignored, err) -> {
+                if (err == null) return new Reply(200, gson.toJson(new SimpleStatus("success", null)));
+                Throwable cause = unwrap(err);
+                // Not persisted: the client should submit the report again.
+                int status = cause instanceof ReportWriter.QueueFullException ? 503 : 500;
+                return new Reply(status, gson.toJson(new SimpleStatus("error", cause.getMessage()))).retryAfter(1);
+            });
+            return respond(req, res, reply);
         });
+
+        Runtime.getRuntime().addShutdownHook(new Thread(MainApi::shutdown, "shutdown"));
+        awaitInitialization();
+        if (AppConfig.getBoolean("WARMUP_ENABLED", true)) {
+            Thread t = new Thread(() -> {
+                warmup.run();
+                if (state == State.STARTING) state = State.READY;
+            }, "warmup");
+            t.setDaemon(true);
+            t.start();
+        } else {
+            state = State.READY;
+        }
+    }
+
+    /**
+     * Shutdown hook (SIGTERM, SIGINT): report "draining" on /ready for SHUTDOWN_DELAY_MS,
+     * then refuse new requests, end the status streams and wait for in-flight requests,
+     * stop the HTTP server, flush the queued reports and close the DB pools. Everything
+     * after the delay shares SHUTDOWN_TIMEOUT_MS.
+     */
+    private static void shutdown() {
+        long start = System.currentTimeMillis();
+        state = State.DRAINING;
+        Log.info("shutdown.draining", "delayMillis", SHUTDOWN_DELAY_MS);
+        try {
+            Thread.sleep(SHUTDOWN_DELAY_MS);
+            state = State.STOPPING;
+            atmService.closeStatusStreams();
+            long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MS;
+            while (RequestMetrics.inFlight() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            int abandoned = RequestMetrics.inFlight();
+            stop();
+            awaitStop();
+            // The writer's last batch needs the pools, so they close only once it is committed.
+            if (atmService.shutdown(Math.max(1000, deadline - System.currentTimeMillis()))) {
+                DatabaseConnector.shutdown();
+            } else {
+                Log.warn("shutdown.writer_unfinished", "hint", "DB pools left open for the report writer");
+            }
+            Map<String, Object> writer = atmService.reportWriterStats();
+            Log.info("shutdown.done", "millis", System.currentTimeMillis() - start, "abandonedRequests", abandoned,
+                    "reportsWritten", writer.get("written"), "reportsUnwritten", writer.get("queued"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Before-filter: reject with 429 and Retry-After when the client or the service as a
+     * whole is over its request rate, before any cache, DB or Gemini work is done.
+     */
+    private static void admit(Request req, Response res) {
+        if ("OPTIONS".equals(req.requestMethod())) return;
+        if (warmup.isOwnRequest(req.headers(Warmup.HEADER))) return;
+        long waitNanos = rateLimiter.tryAcquire(clientIp(req));
+        if (waitNanos > 0) {
+            res.type("application/json");
+            res.header("Retry-After", Long.toString(RateLimiter.retryAfterSeconds(waitNanos)));
+            halt(429, gson.toJson(new SimpleStatus("error", "Too many requests, retry later")));
+        }
+    }
+
+    /**
+     * Whether reports for this request are read from the primary: the client (by
+     * clientIp(), see recentReporters) submitted a report within READ_YOUR_WRITES_MS.
+     */
+    private static boolean readsPrimary(Request req) {
+        return recentReporters.getIfPresent(clientIp(req)) != null;
+    }
+
+    private static String clientIp(Request req) {
+        if (TRUST_FORWARDED_FOR) {
+            String forwarded = req.headers("X-Forwarded-For");
+            if (forwarded != null && !forwarded.isBlank()) {
+                int comma = forwarded.indexOf(',');
+                return (comma >= 0 ? forwarded.substring(0, comma) : forwarded).trim();
+            }
+        }
+        return req.ip();
+    }
+
+    /**
+     * /api/atms?lat=&lon=[&radius=meters][&k=count]: nearest catalogued ATMs from the
+     * in-memory geo index. radius defaults to 2000 m (max 50 km), k to 20 (max 200).
+     */
+    private static Object nearbyAtms(Request req, Response res) throws IOException {
+        res.type("application/json");
+        double lat, lon, radius;
+        int k;
+        try {
+            lat = Double.parseDouble(req.queryParams("lat"));
+            lon = Double.parseDouble(req.queryParams("lon"));
+            String r = req.queryParams("radius");
+            String n = req.queryParams("k");
+            radius = r != null ? Double.parseDouble(r) : 2000;
+            k = n != null ? Integer.parseInt(n) : 20;
+        } catch (NumberFormatException | NullPointerException e) {
+            res.status(400);
+            return gson.toJson(new SimpleStatus("error", "lat and lon must both be numbers; radius and k are optional numbers"));
+        }
+        if (lat < -90 || lat > 90 || lon < -180 || lon > 180 || !(radius > 0) || radius > 50000 || k < 1 || k > 200) {
+            res.status(400);
+            return gson.toJson(new SimpleStatus("error", "Require -90<=lat<=90, -180<=lon<=180, 0<radius<=50000, 1<=k<=200"));
+        }
+        List<NearbyAtm> nearby = atmService.findNearby(lat, lon, radius, k);
+        return respond(req, res, CompletableFuture.completedFuture(new Reply(200, out -> writeJsonArray(out, nearby, NearbyAtm.class))));
+    }
+
+    /**
+     * /api/atms/search?q=[&pincode=][&limit=count]: catalogued ATMs whose name or address
+     * matches q (prefixes, substrings and misspellings too), best first, from the in-memory
+     * search index. limit defaults to 10 (max 50).
+     */
+    private static Object searchAtms(Request req, Response res) throws IOException {
+        res.type("application/json");
+        String q = req.queryParams("q");
+        String pincode = req.queryParams("pincode");
+        int limit;
+        try {
+            String n = req.queryParams("limit");
+            limit = n != null ? Integer.parseInt(n) : 10;
+        } catch (NumberFormatException e) {
+            res.status(400);
+            return gson.toJson(new SimpleStatus("error", "limit must be a number"));
+        }
+        if (q == null || q.isBlank() || q.length() > 200 || limit < 1 || limit > 50) {
+            res.status(400);
+            return gson.toJson(new SimpleStatus("error", "Require a non-empty q of at most 200 characters and 1<=limit<=50"));
+        }
+        List<AtmSearchHit> hits = atmService.searchAtms(q, pincode != null && !pincode.isBlank() ? pincode : null, limit);
+        return respond(req, res, CompletableFuture.completedFuture(new Reply(200, out -> writeJsonArray(out, hits, AtmSearchHit.class))));
+    }
+
+    /**
+     * /api/atms/stream?pincode=: the same ATMs as /api/atms as server-sent events, one
+     * "atm" event (an AtmLocation as JSON) per ATM as soon as Gemini has generated its line,
+     * then a "done" event with the count. Failures after the headers are out are reported
+     * as an "error" event.
+     */
+    private static Object streamAtms(Request req, Response res) throws IOException {
+        String pincode = req.queryParams("pincode") != null ? req.queryParams("pincode") : "";
+        res.type("text/event-stream; charset=utf-8");
+        res.header("Cache-Control", "no-cache");
+        res.header("X-Accel-Buffering", "no");
+        res.raw().flushBuffer();
+        EventStream events = new EventStream(res.raw().getOutputStream());
+
+        CompletableFuture<Integer> done;
+        try {
+            done = atmService.streamAtms(pincode, loc -> events.send("atm", gson.toJson(loc, AtmLocation.class)), readsPrimary(req));
+        } catch (RuntimeException e) {
+            done = CompletableFuture.failedFuture(e);
+        }
+        if (done.isDone()) {
+            finishStream(events, pincode, done);
+            return "";
+        }
+
+        AsyncContext ctx = req.raw().startAsync();
+        ctx.setTimeout(ASYNC_TIMEOUT_MS);
+        AtomicBoolean finished = new AtomicBoolean();
+        ctx.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (!finished.compareAndSet(false, true)) return;
+                events.send("error", gson.toJson(new SimpleStatus("error", "Timed out waiting for the upstream response")));
+                events.close();
+                ctx.complete();
+            }
+            @Override public void onComplete(AsyncEvent event) { events.close(); }
+            @Override public void onError(AsyncEvent event) { events.close(); }
+            @Override public void onStartAsync(AsyncEvent event) {}
+        });
+        CompletableFuture<Integer> pending = done;
+        done.whenComplete((count, err) -> {
+            if (!finished.compareAndSet(false, true)) return;
+            finishStream(events, pincode, pending);
+            ctx.complete();
+        });
+        return "";
+    }
+
+    /**
+     * /api/atms/events?pincode= or ?atm=Name::Address (repeatable, up to
+     * STATUS_STREAM_MAX_ATMS): a long-lived event stream replacing /api/atms polling. It
+     * sends a "status" event (an AtmLocation with its latest report) per ATM right away
+     * and again each time a new report for one of them has been written. The stream ends
+     * with a "close" event whose reason is "slow_consumer" if the client fell behind, or
+     * "shutdown"; clients should reconnect. A client that leaves more than
+     * STATUS_STREAM_MAX_PENDING_BYTES (256 KiB) unread is dropped without one.
+     */
+    private static Object atmEvents(Request req, Response res) throws IOException {
+        String pincode = req.queryParams("pincode");
+        String[] atmParams = req.queryParamsValues("atm");
+        List<AtmLocation> atms = null;
+        if (atmParams != null) {
+            atms = new ArrayList<>(atmParams.length);
+            for (String p : atmParams) {
+                int sep = p.indexOf("::");
+                if (sep < 0) continue;
+                atms.add(new AtmLocation(p.substring(0, sep).trim(), p.substring(sep + 2).trim(), null));
+            }
+        }
+        res.type("application/json");
+        if ((atms == null || atms.isEmpty()) && (pincode == null || pincode.isBlank())) {
+            res.status(400);
+            return gson.toJson(new SimpleStatus("error", "pincode or atm=Name::Address is required"));
+        }
+        if (atms != null && atms.size() > MAX_ATMS_PER_STREAM) {
+            res.status(400);
+            return gson.toJson(new SimpleStatus("error", "At most " + MAX_ATMS_PER_STREAM + " atm parameters"));
+        }
+
+        res.type("text/event-stream; charset=utf-8");
+        res.header("Cache-Control", "no-cache");
+        res.header("X-Accel-Buffering", "no");
+        AsyncContext ctx = req.raw().startAsync();
+        ctx.setTimeout(0); // open until either side ends it
+        res.raw().flushBuffer();
+        // Non-blocking, so a client that stops reading never holds a StatusHub delivery thread.
+        EventStream events = EventStream.nonBlocking(ctx.getResponse().getOutputStream(), MAX_PENDING_EVENT_BYTES);
+        AtomicBoolean finished = new AtomicBoolean();
+        Runnable finish = () -> {
+            if (!finished.compareAndSet(false, true)) return;
+            events.close();
+            ctx.complete();
+        };
+        StatusHub.Sink sink = new StatusHub.Sink() {
+            @Override
+            public boolean send(AtmLocation atm) {
+                return events.send("status", gson.toJson(atm, AtmLocation.class));
+            }
+            @Override
+            public boolean heartbeat() {
+                return events.comment("ping");
+            }
+            @Override
+            public void close(String reason) {
+                events.send("close", gson.toJson(new SimpleStatus("closed", reason)));
+                finish.run();
+            }
+        };
+
+        CompletableFuture<StatusHub.Subscription> subscribed = atms != null && !atms.isEmpty()
+                ? CompletableFuture.completedFuture(atmService.subscribeStatus(atms, sink))
+                : atmService.subscribeStatus(pincode, sink);
+        ctx.addListener(new AsyncListener() {
+            @Override public void onComplete(AsyncEvent event) { cancel(); }
+            @Override public void onError(AsyncEvent event) { cancel(); }
+            @Override public void onTimeout(AsyncEvent event) { cancel(); }
+            @Override public void onStartAsync(AsyncEvent event) {}
+
+            private void cancel() {
+                events.close();
+                subscribed.thenAccept(s -> { if (s != null) s.cancel("client_gone"); });
+            }
+        });
+        subscribed.whenComplete((subscription, err) -> {
+            if (err != null) {
+                Log.error("atms.events_failed", unwrap(err), "pincode", pincode);
+                events.send("error", gson.toJson(new SimpleStatus("error", unwrap(err).toString())));
+                finish.run();
+            } else if (subscription == null) {
+                events.send("error", gson.toJson(new SimpleStatus("error", "No ATMs known for this pincode, or too many open streams")));
+                finish.run();
+            }
+        });
+        return "";
+    }
+
+    private static void finishStream(EventStream events, String pincode, CompletableFuture<Integer> done) {
+        try {
+            events.send("done", "{\"count\":" + done.join() + "}");
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            Log.error("atms.stream_failed", cause, "pincode", pincode);
+            events.send("error", gson.toJson(new SimpleStatus("error", cause.toString())));
+        }
+        events.close();
+    }
+
+    /**
+     * Stream atms as a JSON array, attaching latest reports chunk by chunk as they are read
+     * from the DB. Neither the report-carrying list nor the JSON string is ever built.
+     */
+    private static void writeAtms(OutputStream out, List<AtmLocation> atms, boolean primary) throws IOException {
+        JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+        json.beginArray();
+        atmService.forEachWithLatestReport(atms, loc -> gson.toJson(loc, AtmLocation.class, json), primary);
+        json.endArray();
+        json.flush();
+    }
+
+    private static <T> void writeJsonArray(OutputStream out, List<T> items, Class<T> type) throws IOException {
+        JsonWriter json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+        json.beginArray();
+        for (T item : items) gson.toJson(item, type, json);
+        json.endArray();
+        json.flush();
+    }
+
+    /**
+     * Send reply as the route's response, with its own status. If it is already complete
+     * (cache hit, local rejection) it is written synchronously. Otherwise the request is
+     * switched to servlet async mode and the Jetty thread goes back to the pool while
+     * Gemini is being waited on; SparkAsync keeps Spark from committing the response, so
+     * the status and headers are set when the reply arrives. After ASYNC_TIMEOUT_MS the
+     * request is answered with 504.
+     */
+    private static Object respond(Request req, Response res, CompletableFuture<Reply> reply) throws IOException {
+        if (reply.isDone()) {
+            Reply r = reply.join();
+            res.status(r.status);
+            if (r.retryAfterSeconds > 0) res.header("Retry-After", Long.toString(r.retryAfterSeconds));
+            if (r.writer == null) return r.body;
+            // Streamed straight to the socket; once committed Spark leaves the response alone.
+            r.writeTo(res.raw().getOutputStream());
+            res.raw().flushBuffer();
+            return "";
+        }
+
+        AsyncContext ctx = req.raw().startAsync();
+        ctx.setTimeout(ASYNC_TIMEOUT_MS);
+        AtomicBoolean written = new AtomicBoolean();
+        ctx.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                writeAsync(ctx, written, new Reply(504, gson.toJson(new SimpleStatus("error", "Timed out waiting for the upstream response"))));
+            }
+            @Override public void onComplete(AsyncEvent event) {}
+            @Override public void onError(AsyncEvent event) {}
+            @Override public void onStartAsync(AsyncEvent event) {}
+        });
+        // Written on a container thread: a BodyWriter may read reports from the DB, which
+        // must not hold up the thread that completed the reply (an OkHttp callback).
+        reply.whenComplete((r, err) -> {
+            Reply out = err == null ? r : new Reply(500, gson.toJson(new SimpleStatus("error", unwrap(err).toString())));
+            try {
+                ctx.start(() -> writeAsync(ctx, written, out));
+            } catch (IllegalStateException e) {
+                // Already answered with 504 and completed.
+            }
+        });
+        return "";
+    }
+
+    private static void writeAsync(AsyncContext ctx, AtomicBoolean written, Reply r) {
+        if (!written.compareAndSet(false, true)) return;
+        try {
+            HttpServletResponse response = (HttpServletResponse) ctx.getResponse();
+            response.setStatus(r.status);
+            if (r.retryAfterSeconds > 0) response.setHeader("Retry-After", Long.toString(r.retryAfterSeconds));
+            r.writeTo(response.getOutputStream());
+        } catch (IOException | IllegalStateException e) {
+            Log.warn("async.write_failed", "error", e.getMessage());
+        } finally {
+            ctx.complete();
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+    }
+
+    /**
+     * Writes a response body directly to the servlet output stream.
+     */
+    interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Status plus either a ready-made body or a BodyWriter that streams it.
+     */
+    static class Reply {
+        final int status;
+        final String body;
+        final BodyWriter writer;
+        final long retryAfterSeconds;
+
+        Reply(int status, String body) {
+            this(status, body, null, 0);
+        }
+
+        Reply(int status, BodyWriter writer) {
+            this(status, null, writer, 0);
+        }
+
+        private Reply(int status, String body, BodyWriter writer, long retryAfterSeconds) {
+            this.status = status;
+            this.body = body;
+            this.writer = writer;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * Copy of this reply that also sends Retry-After.
+         */
+        Reply retryAfter(long seconds) {
+            return new Reply(status, body, writer, seconds);
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            if (writer != null) {
+                writer.writeTo(out);
+            } else {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    static class GenerateRequest {
+        String prompt;
     }
 
     static class SimpleStatus {
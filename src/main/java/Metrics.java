@@ -0,0 +1,116 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide metrics registry rendered in the Prometheus text format by /metrics.
+ *
+ * Counters are LongAdders and timers are LatencyHistograms (exported as summaries with
+ * p50/p90/p99/p999). Callers look a series up once and keep the handle, so recording on
+ * the hot path is a plain add without map lookups or allocation. Gauges are sampled
+ * from a Supplier at scrape time.
+ *
+ * Label sets are passed preformatted, e.g. {@code route="/api/atms",status="2xx"}.
+ */
+public final class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    // Nanoseconds this thread has held pooled DB connections, see ConnectionPool.
+    private static final ThreadLocal<long[]> threadDbNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+    private Metrics() {}
+
+    public static LongAdder counter(String name, String help, String labels) {
+        return (LongAdder) family(name, "counter", help).series.computeIfAbsent(labels, l -> new LongAdder());
+    }
+
+    public static LatencyHistogram timer(String name, String help, String labels) {
+        return (LatencyHistogram) family(name, "summary", help).series.computeIfAbsent(labels, l -> new LatencyHistogram());
+    }
+
+    /**
+     * Register (or replace) a gauge whose value is read from value at scrape time.
+     */
+    public static void gauge(String name, String help, String labels, Supplier<? extends Number> value) {
+        family(name, "gauge", help).series.put(labels, value);
+    }
+
+    static void addThreadDbNanos(long nanos) {
+        threadDbNanos.get()[0] += nanos;
+    }
+
+    /**
+     * Total time the calling thread has held DB connections; diff two readings to get
+     * the DB time of the work in between.
+     */
+    static long threadDbNanos() {
+        return threadDbNanos.get()[0];
+    }
+
+    private static Family family(String name, String type, String help) {
+        Family f = families.computeIfAbsent(name, n -> new Family(type, help));
+        if (!f.type.equals(type)) throw new IllegalArgumentException(name + " is already registered as a " + f.type);
+        return f;
+    }
+
+    /**
+     * All registered series in the Prometheus text exposition format (version 0.0.4).
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Family> fe : new TreeMap<>(families).entrySet()) {
+            String name = fe.getKey();
+            Family f = fe.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, Object> se : new TreeMap<>(f.series).entrySet()) {
+                String labels = se.getKey();
+                Object m = se.getValue();
+                if (m instanceof LongAdder) {
+                    sample(sb, name, labels, ((LongAdder) m).sum());
+                } else if (m instanceof LatencyHistogram) {
+                    LatencyHistogram h = (LatencyHistogram) m;
+                    for (double q : QUANTILES) {
+                        String ql = "quantile=\"" + q + "\"";
+                        sample(sb, name, labels.isEmpty() ? ql : labels + "," + ql, h.quantileSeconds(q));
+                    }
+                    sample(sb, name + "_sum", labels, h.sumSeconds());
+                    sample(sb, name + "_count", labels, h.count());
+                } else {
+                    Number v;
+                    try {
+                        @SuppressWarnings("unchecked")
+                        Supplier<? extends Number> s = (Supplier<? extends Number>) m;
+                        v = s.get();
+                    } catch (RuntimeException e) {
+                        continue;
+                    }
+                    if (v != null) sample(sb, name, labels, v);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, Number value) {
+        sb.append(name);
+        if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static final class Family {
+        final String type;
+        final String help;
+        final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * An ATM returned by a coordinate search, with its distance from the query point.
+ */
+public class NearbyAtm {
+    private final String name;
+    private final String address;
+    private final double latitude;
+    private final double longitude;
+    private final double distanceMeters;
+    private final AtmReport latestReport;
+
+    public NearbyAtm(AtmLocation location, double distanceMeters, AtmReport latestReport) {
+        this.name = location.getName();
+        this.address = location.getAddress();
+        this.latitude = location.getLatitude();
+        this.longitude = location.getLongitude();
+        this.distanceMeters = distanceMeters;
+        this.latestReport = latestReport;
+    }
+
+    public String getName() { return name; }
+    public String getAddress() { return address; }
+    public double getLatitude() { return latitude; }
+    public double getLongitude() { return longitude; }
+    public double getDistanceMeters() { return distanceMeters; }
+    public AtmReport getLatestReport() { return latestReport; }
+}
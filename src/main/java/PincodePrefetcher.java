@@ -0,0 +1,171 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the ATM lists of the most requested pincodes cached so their users never wait
+ * for Gemini.
+ *
+ * Every lookup is counted in a HotKeys sketch. Every intervalSeconds the prefetcher
+ * takes the topN pincodes seen at least minHits times and reloads each one whose cache
+ * entry is missing or expires within refreshAheadSeconds: from the DB catalog when it is
+ * fresh enough, otherwise from Gemini. Gemini refreshes are limited to maxUpstreamPerRun
+ * per run and are skipped while GeminiClient.hasSpareCapacity() is false, so prefetching
+ * never competes with user traffic for upstream capacity. Counts are halved every
+ * decayMinutes so the hot set follows current traffic.
+ *
+ * Refreshes run one after another on a single background thread.
+ */
+public class PincodePrefetcher {
+
+    /**
+     * What a single refresh did.
+     */
+    public enum Result { CATALOG, GEMINI, NO_BUDGET, FAILED }
+
+    /**
+     * The cache operations the prefetcher needs; implemented by AtmService.
+     */
+    public interface Target {
+        /** Milliseconds until pincode's cached list expires, Long.MIN_VALUE if not cached. */
+        long cacheRemainingMillis(String pincode);
+
+        /** Reload pincode's list, from Gemini only if allowUpstream. */
+        Result refresh(String pincode, boolean allowUpstream);
+
+        /** Whether Gemini has room for background calls right now. */
+        boolean upstreamHasCapacity();
+    }
+
+    private final Target target;
+    private final HotKeys hot;
+    private final int topN;
+    private final long minHits;
+    private final long refreshAheadMillis;
+    private final int maxUpstreamPerRun;
+    private final long decayMillis;
+
+    private ScheduledExecutorService scheduler;
+    private long lastDecayMillis = System.currentTimeMillis();
+
+    private final AtomicLong runs = new AtomicLong();
+    private volatile long lastRunMillis;
+    private final LongAdder fromCatalog = Metrics.counter("atm_prefetch_total", "Background refreshes of hot pincodes.", "result=\"catalog\"");
+    private final LongAdder fromGemini = Metrics.counter("atm_prefetch_total", "Background refreshes of hot pincodes.", "result=\"gemini\"");
+    private final LongAdder noBudget = Metrics.counter("atm_prefetch_total", "Background refreshes of hot pincodes.", "result=\"no_budget\"");
+    private final LongAdder failed = Metrics.counter("atm_prefetch_total", "Background refreshes of hot pincodes.", "result=\"failed\"");
+
+    public PincodePrefetcher(Target target, HotKeys hot, int topN, long minHits, long refreshAheadSeconds,
+                             int maxUpstreamPerRun, long decayMinutes) {
+        this.target = target;
+        this.hot = hot;
+        this.topN = topN;
+        this.minHits = minHits;
+        this.refreshAheadMillis = TimeUnit.SECONDS.toMillis(refreshAheadSeconds);
+        this.maxUpstreamPerRun = maxUpstreamPerRun;
+        this.decayMillis = TimeUnit.MINUTES.toMillis(decayMinutes);
+        Metrics.gauge("atm_prefetch_tracked_pincodes", "Pincodes tracked as prefetch candidates.", "", hot::trackedCount);
+    }
+
+    /**
+     * Build a prefetcher from PREFETCH_TOP_N (default 50), PREFETCH_MIN_HITS (3),
+     * PREFETCH_REFRESH_AHEAD_SECONDS (900), PREFETCH_MAX_UPSTREAM_PER_RUN (5) and
+     * PREFETCH_DECAY_MINUTES (60). The sketch is PREFETCH_SKETCH_WIDTH (2048) counters wide
+     * and 4 deep.
+     */
+    public static PincodePrefetcher fromConfig(Target target) {
+        int topN = AppConfig.getInt("PREFETCH_TOP_N", 50);
+        return new PincodePrefetcher(target,
+                new HotKeys(AppConfig.getInt("PREFETCH_SKETCH_WIDTH", 2048), 4, Math.max(64, 4 * topN)),
+                topN,
+                AppConfig.getLong("PREFETCH_MIN_HITS", 3),
+                AppConfig.getLong("PREFETCH_REFRESH_AHEAD_SECONDS", 900),
+                AppConfig.getInt("PREFETCH_MAX_UPSTREAM_PER_RUN", 5),
+                AppConfig.getLong("PREFETCH_DECAY_MINUTES", 60));
+    }
+
+    /**
+     * Count a lookup of pincode (already normalized).
+     */
+    public void recordLookup(String pincode) {
+        if (!pincode.isEmpty()) hot.add(pincode);
+    }
+
+    public synchronized void start(long intervalSeconds) {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pincode-prefetcher");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::runSafely, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private void runSafely() {
+        try {
+            runOnce();
+        } catch (RuntimeException e) {
+            Log.error("prefetch.failed", e);
+        }
+    }
+
+    void runOnce() {
+        long now = System.currentTimeMillis();
+        if (now - lastDecayMillis >= decayMillis) {
+            hot.decay();
+            lastDecayMillis = now;
+        }
+
+        int upstreamBudget = maxUpstreamPerRun;
+        for (Map.Entry<String, Long> e : hot.top(topN, minHits)) {
+            if (Thread.currentThread().isInterrupted()) return;
+            String pincode = e.getKey();
+            if (target.cacheRemainingMillis(pincode) > refreshAheadMillis) continue;
+
+            Result result;
+            try {
+                result = target.refresh(pincode, upstreamBudget > 0 && target.upstreamHasCapacity());
+            } catch (CompletionException | IllegalStateException ex) {
+                result = Result.FAILED;
+            }
+            switch (result) {
+                case CATALOG: fromCatalog.increment(); break;
+                case GEMINI: fromGemini.increment(); upstreamBudget--; break;
+                case NO_BUDGET: noBudget.increment(); break;
+                default: failed.increment(); upstreamBudget--; break;
+            }
+        }
+        runs.incrementAndGet();
+        lastRunMillis = System.currentTimeMillis();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("runs", runs.get());
+        m.put("lastRunMillis", lastRunMillis);
+        m.put("lookupsCounted", hot.total());
+        m.put("trackedPincodes", hot.trackedCount());
+        m.put("fromCatalog", fromCatalog.sum());
+        m.put("fromGemini", fromGemini.sum());
+        m.put("noBudget", noBudget.sum());
+        m.put("failed", failed.sum());
+        Map<String, Long> hottest = new LinkedHashMap<>();
+        List<Map.Entry<String, Long>> top = hot.top(10, 1);
+        for (Map.Entry<String, Long> e : top) hottest.put(e.getKey(), e.getValue());
+        m.put("hottest", hottest);
+        return m;
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token-bucket admission control: one bucket per client key (IP) plus one global bucket.
+ *
+ * tryAcquire() takes a token from the client's bucket and then from the global one and
+ * returns 0 when the request may proceed, otherwise the number of nanoseconds until a
+ * token will be available (for Retry-After). A request refused by the global bucket
+ * gives the client's token back, so clients are not charged for global overload.
+ *
+ * At most maxClients buckets are tracked, so memory stays bounded under address churn.
+ * When a new client arrives at the limit, a sweep looks at the next few buckets after
+ * where the previous one stopped and drops those idle long enough to have refilled
+ * completely. If that frees no room, the client is charged to one shared overflow bucket
+ * (with the per-client limits) until a later sweep does.
+ */
+public class RateLimiter {
+
+    private static final int SWEEP_BATCH = 32;
+
+    private final double perClientRate;
+    private final double perClientBurst;
+    private final int maxClients;
+    private final TokenBucket global;
+    private final Map<String, TokenBucket> clients = new ConcurrentHashMap<>();
+    private final TokenBucket overflow;
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private Iterator<TokenBucket> hand;
+
+    private final LongAdder limitedByClient = Metrics.counter("rate_limited_total", "Requests rejected with 429.", "scope=\"client\"");
+    private final LongAdder limitedGlobally = Metrics.counter("rate_limited_total", "Requests rejected with 429.", "scope=\"global\"");
+    private final LongAdder overflowed = Metrics.counter("rate_limiter_overflow_total",
+            "Requests from untracked clients charged to the shared overflow bucket.", "");
+
+    public RateLimiter(double perClientRate, double perClientBurst, double globalRate, double globalBurst, int maxClients) {
+        this.perClientRate = perClientRate;
+        this.perClientBurst = perClientBurst;
+        this.maxClients = maxClients;
+        this.global = new TokenBucket(globalRate, globalBurst);
+        this.overflow = new TokenBucket(perClientRate, perClientBurst);
+        Metrics.gauge("rate_limiter_clients", "Client buckets currently tracked.", "", clients::size);
+    }
+
+    /**
+     * Build a limiter from RATE_LIMIT_PER_IP_RPS (default 5), RATE_LIMIT_PER_IP_BURST
+     * (default 20), RATE_LIMIT_GLOBAL_RPS (default 200), RATE_LIMIT_GLOBAL_BURST
+     * (default 400) and RATE_LIMIT_MAX_CLIENTS (default 10000).
+     */
+    public static RateLimiter fromConfig() {
+        return new RateLimiter(
+                AppConfig.getDouble("RATE_LIMIT_PER_IP_RPS", 5),
+                AppConfig.getDouble("RATE_LIMIT_PER_IP_BURST", 20),
+                AppConfig.getDouble("RATE_LIMIT_GLOBAL_RPS", 200),
+                AppConfig.getDouble("RATE_LIMIT_GLOBAL_BURST", 400),
+                AppConfig.getInt("RATE_LIMIT_MAX_CLIENTS", 10000));
+    }
+
+    /**
+     * 0 if a request from client is admitted, otherwise nanoseconds until it could be.
+     */
+    public long tryAcquire(String client) {
+        long now = System.nanoTime();
+        TokenBucket bucket = clients.get(client);
+        if (bucket == null) {
+            if (clients.size() >= maxClients) sweep(now);
+            if (clients.size() < maxClients) {
+                TokenBucket created = new TokenBucket(perClientRate, perClientBurst);
+                TokenBucket raced = clients.putIfAbsent(client, created);
+                bucket = raced != null ? raced : created;
+            } else {
+                bucket = overflow;
+                overflowed.increment();
+            }
+        }
+        long wait = bucket.tryAcquire(now);
+        if (wait > 0) {
+            limitedByClient.increment();
+            return wait;
+        }
+        wait = global.tryAcquire(now);
+        if (wait > 0) {
+            // Not served, so not charged to the client.
+            bucket.refund();
+            limitedGlobally.increment();
+            return wait;
+        }
+        return 0;
+    }
+
+    // Look at up to SWEEP_BATCH buckets from where the last sweep stopped and drop the
+    // full ones, so making room costs a bounded amount per new client rather than a scan
+    // of every tracked client. A sweep already running elsewhere is not waited for.
+    private void sweep(long now) {
+        if (!sweepLock.tryLock()) return;
+        try {
+            for (int i = 0; i < SWEEP_BATCH; i++) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = clients.values().iterator();
+                    if (!hand.hasNext()) return;
+                }
+                if (hand.next().isFull(now)) hand.remove();
+            }
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    /**
+     * Whole seconds a client should wait for waitNanos, at least 1, for Retry-After.
+     */
+    public static long retryAfterSeconds(long waitNanos) {
+        return Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static final class TokenBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(double perSecond, double capacity) {
+            this.tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1, capacity);
+            this.tokens = this.capacity;
+            this.refilledAt = System.nanoTime();
+        }
+
+        synchronized long tryAcquire(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            if (tokensPerNano <= 0) return TimeUnit.SECONDS.toNanos(60);
+            return (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+
+        synchronized void refund() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+                refilledAt = now;
+            }
+        }
+    }
+}
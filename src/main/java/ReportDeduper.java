@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The most recent ATM_reports row per ATM, remembered for a limited window so that
+ * identical follow-up reports can confirm that row instead of inserting a new one.
+ *
+ * Entries are kept in a ring of time buckets (window / BUCKETS wide each). A whole
+ * bucket is dropped once it is older than the window, so expiry costs nothing per
+ * entry and memory is bounded by the reports of one window. Beyond maxEntries nothing
+ * new is remembered until buckets expire; those reports are simply inserted.
+ *
+ * Only used from the ReportWriter thread, so it is not thread-safe.
+ */
+class ReportDeduper {
+
+    private static final int BUCKETS = 8;
+
+    private final long windowMillis;
+    private final long bucketMillis;
+    private final int maxEntries;
+    private final List<Map<String, Row>> buckets = new ArrayList<>(BUCKETS);
+    private final long[] bucketEpochs = new long[BUCKETS];
+    private int size;
+
+    ReportDeduper(long windowMillis, int maxEntries) {
+        this.windowMillis = windowMillis;
+        this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+        this.maxEntries = maxEntries;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.add(new HashMap<>());
+            bucketEpochs[i] = -1;
+        }
+    }
+
+    boolean isEnabled() {
+        return windowMillis > 0;
+    }
+
+    /**
+     * The row last inserted for atmKey if it is within the window at nowMillis, else null.
+     */
+    Row latest(String atmKey, long nowMillis) {
+        if (!isEnabled()) return null;
+        long epoch = nowMillis / bucketMillis;
+        // Newest bucket first: a later row for the same ATM replaces the earlier one.
+        for (int i = 0; i < BUCKETS; i++) {
+            long e = epoch - i;
+            int slot = Math.floorMod(e, BUCKETS);
+            if (bucketEpochs[slot] != e) continue;
+            Row row = buckets.get(slot).get(atmKey);
+            if (row != null) return nowMillis - row.insertedAtMillis <= windowMillis ? row : null;
+        }
+        return null;
+    }
+
+    /**
+     * Remember a freshly inserted row as the latest one for atmKey.
+     */
+    void inserted(String atmKey, Row row) {
+        if (!isEnabled()) return;
+        long epoch = row.insertedAtMillis / bucketMillis;
+        expireBefore(epoch - BUCKETS + 1);
+        int slot = Math.floorMod(epoch, BUCKETS);
+        if (bucketEpochs[slot] != epoch) {
+            size -= buckets.get(slot).size();
+            buckets.get(slot).clear();
+            bucketEpochs[slot] = epoch;
+        }
+        Row replaced = buckets.get(slot).get(atmKey);
+        if (replaced == null && size >= maxEntries) {
+            // Cannot remember the new row, so an older one must not be confirmed either.
+            forget(atmKey);
+            return;
+        }
+        buckets.get(slot).put(atmKey, row);
+        if (replaced == null) size++;
+        // An older row for the ATM in another bucket is shadowed by this one and expires with its bucket.
+    }
+
+    private void forget(String atmKey) {
+        for (Map<String, Row> bucket : buckets) {
+            if (bucket.remove(atmKey) != null) size--;
+        }
+    }
+
+    private void expireBefore(long oldestLiveEpoch) {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (bucketEpochs[i] >= 0 && bucketEpochs[i] < oldestLiveEpoch) {
+                size -= buckets.get(i).size();
+                buckets.get(i).clear();
+                bucketEpochs[i] = -1;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * A report row: its id, status tuple, when it was inserted and how many reports it
+     * stands for so far.
+     */
+    static final class Row {
+        final long reportId;
+        final AtmStatus cash;
+        final AtmStatus deposit;
+        final AtmStatus passbook;
+        final long insertedAtMillis;
+        int confirmations;
+
+        Row(long reportId, AtmStatus cash, AtmStatus deposit, AtmStatus passbook, long insertedAtMillis, int confirmations) {
+            this.reportId = reportId;
+            this.cash = cash;
+            this.deposit = deposit;
+            this.passbook = passbook;
+            this.insertedAtMillis = insertedAtMillis;
+            this.confirmations = confirmations;
+        }
+
+        boolean sameStatus(AtmStatus cash, AtmStatus deposit, AtmStatus passbook) {
+            return this.cash == cash && this.deposit == deposit && this.passbook == passbook;
+        }
+    }
+}
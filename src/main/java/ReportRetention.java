@@ -0,0 +1,269 @@
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Partition maintenance for ATM_reports (see sql/partition_atm_reports.sql).
+ *
+ * Each run, on a background thread:
+ * - makes sure monthly partitions exist for the next monthsAhead months by splitting the
+ *   catch-all pmax partition, so new reports never land in pmax;
+ * - for every partition that only holds reports older than retentionMonths (its upper
+ *   bound is at or before the first day of the oldest retained month), writes its rows
+ *   to archiveDir as gzipped JSON lines (ATM_reports-{partition}.jsonl.gz) and then
+ *   drops the partition. A partition is only dropped once its archive file is complete.
+ *
+ * Dropping a partition is a metadata operation, so the table, its indexes and backups
+ * stay the size of the retained months. Months are UTC. If the table is not partitioned
+ * the job does nothing.
+ */
+public class ReportRetention {
+
+    private static final String TABLE = "ATM_reports";
+    private static final String PARTITIONS_SQL = "SELECT PARTITION_NAME, PARTITION_DESCRIPTION, TABLE_ROWS "
+            + "FROM information_schema.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? "
+            + "AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION";
+
+    private final int retentionMonths;
+    private final int monthsAhead;
+    private final File archiveDir;
+
+    private ScheduledExecutorService scheduler;
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong partitionsAdded = new AtomicLong();
+    private final AtomicLong partitionsDropped = new AtomicLong();
+    private final AtomicLong rowsArchived = new AtomicLong();
+    private volatile String lastError;
+    private volatile long lastRunMillis;
+
+    /**
+     * retentionMonths of 0 keeps everything (partitions are still added ahead).
+     * archiveDir null drops expired partitions without archiving them.
+     */
+    public ReportRetention(int retentionMonths, int monthsAhead, File archiveDir) {
+        this.retentionMonths = retentionMonths;
+        this.monthsAhead = Math.max(1, monthsAhead);
+        this.archiveDir = archiveDir;
+    }
+
+    /**
+     * Build the job from REPORT_RETENTION_MONTHS (default 0, keep everything),
+     * REPORT_PARTITIONS_AHEAD (default 2), REPORT_ARCHIVE_ENABLED (default true) and
+     * REPORT_ARCHIVE_DIR (default ./archive). Dropping old months is opt-in.
+     */
+    public static ReportRetention fromConfig() {
+        File dir = AppConfig.getBoolean("REPORT_ARCHIVE_ENABLED", true)
+                ? new File(AppConfig.getString("REPORT_ARCHIVE_DIR", "archive"))
+                : null;
+        return new ReportRetention(
+                AppConfig.getInt("REPORT_RETENTION_MONTHS", 0),
+                AppConfig.getInt("REPORT_PARTITIONS_AHEAD", 2),
+                dir);
+    }
+
+    /**
+     * Run the job an hour from now and then every intervalHours (at least 1).
+     */
+    public synchronized void start(long intervalHours) {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "report-retention");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::runSafely, 1, TimeUnit.HOURS.toMinutes(Math.max(1, intervalHours)), TimeUnit.MINUTES);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private void runSafely() {
+        try {
+            runOnce(LocalDate.now(ZoneOffset.UTC));
+            lastError = null;
+        } catch (SQLException | IOException | RuntimeException e) {
+            lastError = e.getMessage();
+            Log.error("retention.failed", e);
+        }
+        runs.incrementAndGet();
+        lastRunMillis = System.currentTimeMillis();
+    }
+
+    void runOnce(LocalDate today) throws SQLException, IOException {
+        try (Connection conn = DatabaseConnector.getConnection()) {
+            if (conn == null) throw new SQLException("No DB connection");
+            List<Partition> partitions = listPartitions(conn);
+            if (partitions.isEmpty()) return; // not partitioned yet
+
+            addPartitionsAhead(conn, partitions, today.withDayOfMonth(1).plusMonths(monthsAhead + 1));
+            if (retentionMonths <= 0) return;
+
+            long cutoff = epochSecond(today.withDayOfMonth(1).minusMonths(retentionMonths - 1));
+            for (Partition p : partitions) {
+                if (p.upperBound == null || p.upperBound > cutoff) continue;
+                if (Thread.currentThread().isInterrupted()) return;
+                if (archiveDir != null) archive(conn, p);
+                Log.warn("retention.dropping_partition", "partition", p.name, "approxRows", p.approxRows,
+                        "before", Instant.ofEpochSecond(p.upperBound));
+                try (Statement st = conn.createStatement()) {
+                    st.execute("ALTER TABLE " + TABLE + " DROP PARTITION " + p.name);
+                }
+                partitionsDropped.incrementAndGet();
+            }
+        }
+    }
+
+    private static List<Partition> listPartitions(Connection conn) throws SQLException {
+        List<Partition> out = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(PARTITIONS_SQL)) {
+            ps.setString(1, TABLE);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String bound = rs.getString("PARTITION_DESCRIPTION");
+                    Long upper = bound == null || "MAXVALUE".equalsIgnoreCase(bound) ? null : Long.parseLong(bound.trim());
+                    out.add(new Partition(rs.getString("PARTITION_NAME"), upper, rs.getLong("TABLE_ROWS")));
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Split pmax into monthly partitions up to (excluding) the month starting at until.
+     */
+    private void addPartitionsAhead(Connection conn, List<Partition> partitions, LocalDate until) throws SQLException {
+        Partition last = partitions.get(partitions.size() - 1);
+        if (last.upperBound != null) return; // no MAXVALUE partition to split
+        long highest = Long.MIN_VALUE;
+        for (Partition p : partitions) if (p.upperBound != null) highest = Math.max(highest, p.upperBound);
+
+        StringBuilder parts = new StringBuilder();
+        int added = 0;
+        LocalDate month = highest == Long.MIN_VALUE
+                ? until.minusMonths(monthsAhead + 1)
+                : Instant.ofEpochSecond(highest).atZone(ZoneOffset.UTC).toLocalDate().withDayOfMonth(1);
+        for (; month.isBefore(until); month = month.plusMonths(1)) {
+            long bound = epochSecond(month.plusMonths(1));
+            if (bound <= highest) continue;
+            parts.append("PARTITION p").append(String.format("%04d%02d", month.getYear(), month.getMonthValue()))
+                    .append(" VALUES LESS THAN (").append(bound).append("), ");
+            added++;
+        }
+        if (added == 0) return;
+        parts.append("PARTITION ").append(last.name).append(" VALUES LESS THAN MAXVALUE");
+        try (Statement st = conn.createStatement()) {
+            st.execute("ALTER TABLE " + TABLE + " REORGANIZE PARTITION " + last.name + " INTO (" + parts + ")");
+        }
+        partitionsAdded.addAndGet(added);
+    }
+
+    /**
+     * Stream the partition's rows into a gzipped JSON-lines file, written to a temporary
+     * name and renamed into place once complete.
+     */
+    private void archive(Connection conn, Partition p) throws SQLException, IOException {
+        if (!archiveDir.isDirectory() && !archiveDir.mkdirs()) {
+            throw new IOException("Cannot create archive directory " + archiveDir.getAbsolutePath());
+        }
+        File target = new File(archiveDir, TABLE + "-" + p.name + ".jsonl.gz");
+        File tmp = new File(archiveDir, target.getName() + ".tmp");
+        long rows = 0;
+        try (PreparedStatement ps = conn.prepareStatement("SELECT * FROM " + TABLE + " PARTITION (" + p.name + ")",
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            ps.setFetchSize(Integer.MIN_VALUE); // MySQL Connector/J: stream rows instead of buffering the partition
+            try (ResultSet rs = ps.executeQuery();
+                 FileOutputStream file = new FileOutputStream(tmp);
+                 GZIPOutputStream gzip = new GZIPOutputStream(file, 1 << 16);
+                 BufferedWriter out = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8))) {
+                ResultSetMetaData meta = rs.getMetaData();
+                int columns = meta.getColumnCount();
+                while (rs.next()) {
+                    JsonWriter json = new JsonWriter(out);
+                    json.beginObject();
+                    for (int c = 1; c <= columns; c++) {
+                        json.name(meta.getColumnLabel(c));
+                        Object v = rs.getObject(c);
+                        if (v == null) {
+                            json.nullValue();
+                        } else if (v instanceof Number) {
+                            json.value((Number) v);
+                        } else if (v instanceof Timestamp) {
+                            json.value(((Timestamp) v).toInstant().toString());
+                        } else {
+                            json.value(v.toString());
+                        }
+                    }
+                    json.endObject();
+                    json.flush();
+                    out.write('\n');
+                    rows++;
+                }
+                out.flush();
+                gzip.finish();
+                file.getFD().sync();
+            }
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        rowsArchived.addAndGet(rows);
+    }
+
+    private static long epochSecond(LocalDate day) {
+        return day.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("retentionMonths", retentionMonths);
+        m.put("monthsAhead", monthsAhead);
+        m.put("archiveDir", archiveDir != null ? archiveDir.getAbsolutePath() : null);
+        m.put("runs", runs.get());
+        m.put("lastRunMillis", lastRunMillis);
+        m.put("partitionsAdded", partitionsAdded.get());
+        m.put("partitionsDropped", partitionsDropped.get());
+        m.put("rowsArchived", rowsArchived.get());
+        m.put("lastError", lastError);
+        return m;
+    }
+
+    private static final class Partition {
+        final String name;
+        final Long upperBound; // epoch seconds, null for MAXVALUE
+        final long approxRows;
+
+        Partition(String name, Long upperBound, long approxRows) {
+            this.name = name;
+            this.upperBound = upperBound;
+            this.approxRows = approxRows;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind buffer for ATM reports.
+ *
+ * Submissions go into a bounded in-memory queue and a single writer thread drains it,
+ * inserting up to batchSize reports per JDBC batch in one transaction. A batch is
+ * flushed as soon as it is full or flushIntervalMillis after its first report arrived.
+ * With rewriteBatchedStatements=true on the JDBC URL (see DatabaseConnector) the
+ * driver turns each batch into a single multi-row INSERT.
+ *
+ * The same transaction upserts atm_latest_status, so the per-ATM latest report is
+ * always consistent with ATM_reports.
+ *
+ * Bursts of identical reports are coalesced: a report with the same status tuple as
+ * its ATM's latest row, inserted less than dedupWindowMillis ago, increments that row's
+ * confirmations instead of adding a row (see ReportDeduper). Only the ATM's latest row
+ * is ever confirmed, so atm_latest_status never goes back to an older status.
+ *
+ * When the queue is full, submit() fails immediately with QueueFullException so the
+ * caller can push back (HTTP 503) instead of buffering without bound.
+ */
+public class ReportWriter {
+
+    private static final String INSERT_SQL = "INSERT INTO ATM_reports (atm_name, atm_address, cash_status, deposit_status, passbook_status, report_timestamp, confirmations, last_confirmed_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    // The report_timestamp bound lets MySQL prune to the partitions the row can be in.
+    private static final String CONFIRM_SQL = "UPDATE ATM_reports SET confirmations = confirmations + ?, last_confirmed_at = ? "
+            + "WHERE report_id = ? AND report_timestamp >= ?";
+    private static final String CONFIRM_LATEST_SQL = "UPDATE atm_latest_status SET confirmations = confirmations + ? WHERE location_hash = ? AND report_id = ?";
+
+    // Keep atm_latest_status pointing at the newest report. Assignments run left to right,
+    // so report_timestamp must be updated last for the comparisons above it to see the old value.
+    // CASE rather than IF() so the bench module's H2 stand-in accepts the statement too.
+    private static final String UPSERT_LATEST_SQL = "INSERT INTO atm_latest_status "
+            + "(location_hash, atm_name, atm_address, cash_status, deposit_status, passbook_status, report_id, report_timestamp, confirmations) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE "
+            + "confirmations = CASE WHEN VALUES(report_timestamp) >= report_timestamp THEN VALUES(confirmations) ELSE confirmations END, "
+            + "cash_status = CASE WHEN VALUES(report_timestamp) >= report_timestamp THEN VALUES(cash_status) ELSE cash_status END, "
+            + "deposit_status = CASE WHEN VALUES(report_timestamp) >= report_timestamp THEN VALUES(deposit_status) ELSE deposit_status END, "
+            + "passbook_status = CASE WHEN VALUES(report_timestamp) >= report_timestamp THEN VALUES(passbook_status) ELSE passbook_status END, "
+            + "report_id = CASE WHEN VALUES(report_timestamp) >= report_timestamp THEN VALUES(report_id) ELSE report_id END, "
+            + "report_timestamp = GREATEST(report_timestamp, VALUES(report_timestamp))";
+
+    // Longest the writer blocks without looking at running, so close() takes effect promptly.
+    private static final long WAKE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final BlockingQueue<PendingReport> queue;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final ReportDeduper deduper;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final List<Consumer<List<AtmLocation>>> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong flushNanosTotal = new AtomicLong();
+    private final LatencyHistogram flushTime = Metrics.timer("report_flush_seconds", "Time to write and commit one report batch.", "");
+    private final LongAdder writtenTotal = Metrics.counter("reports_written_total", "Reports committed to ATM_reports.", "");
+    private final LongAdder rejectedTotal = Metrics.counter("reports_rejected_total", "Reports refused because the queue was full.", "");
+    private final LongAdder coalescedTotal = Metrics.counter("reports_coalesced_total", "Reports written as a confirmation of an existing row instead of a new row.", "");
+
+    public ReportWriter(int capacity, int batchSize, long flushIntervalMillis, long dedupWindowMillis, int dedupMaxAtms) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.deduper = new ReportDeduper(dedupWindowMillis, dedupMaxAtms);
+        Metrics.gauge("report_queue_depth", "Reports waiting to be written.", "", queue::size);
+        this.writer = new Thread(this::run, "report-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Build a writer from REPORT_QUEUE_CAPACITY (default 10000), REPORT_BATCH_SIZE
+     * (default 500), REPORT_FLUSH_MS (default 200), REPORT_DEDUP_WINDOW_SECONDS (default
+     * 600, 0 disables coalescing) and REPORT_DEDUP_MAX_ATMS (default 100000).
+     */
+    public static ReportWriter fromConfig() {
+        return new ReportWriter(
+                AppConfig.getInt("REPORT_QUEUE_CAPACITY", 10000),
+                AppConfig.getInt("REPORT_BATCH_SIZE", 500),
+                AppConfig.getLong("REPORT_FLUSH_MS", 200),
+                AppConfig.getLong("REPORT_DEDUP_WINDOW_SECONDS", 600) * 1000L,
+                AppConfig.getInt("REPORT_DEDUP_MAX_ATMS", 100000));
+    }
+
+    /**
+     * Queue a report for writing. The future completes once the batch holding the
+     * report is committed, or exceptionally if the write failed. If the queue is full
+     * it is already failed with QueueFullException when returned.
+     */
+    public CompletableFuture<Void> submit(String name, String address, AtmStatus cashStatus, AtmStatus depositStatus, AtmStatus passbookStatus) {
+        PendingReport p = new PendingReport(name, address, cashStatus, depositStatus, passbookStatus);
+        if (!running || !queue.offer(p)) {
+            rejected.incrementAndGet();
+            rejectedTotal.increment();
+            p.future.completeExceptionally(new QueueFullException());
+        } else {
+            accepted.incrementAndGet();
+        }
+        return p.future;
+    }
+
+    /**
+     * Register a callback invoked on the writer thread after every committed batch with
+     * the written reports, each as an AtmLocation carrying its new latest report. Reports
+     * coalesced into one row are passed once, with the row's total confirmations.
+     */
+    public void addListener(Consumer<List<AtmLocation>> listener) {
+        listeners.add(listener);
+    }
+
+    private void run() {
+        List<PendingReport> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                long flushNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                PendingReport first = queue.poll(Math.min(flushNanos, WAKE_NANOS), TimeUnit.NANOSECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + flushNanos;
+                while (batch.size() < batchSize && running) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    PendingReport next = queue.poll(Math.min(remaining, WAKE_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) batch.add(next);
+                }
+                // Closing: take what is queued without waiting for more.
+                if (!running) queue.drainTo(batch, batchSize - batch.size());
+                flush(batch);
+            } catch (InterruptedException e) {
+                if (!batch.isEmpty()) flush(batch);
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingReport> batch) {
+        long start = System.nanoTime();
+        List<RowWrite> rows = plan(batch);
+        try (Connection conn = DatabaseConnector.getConnection()) {
+            if (conn == null) throw new SQLException("No DB connection");
+            conn.setAutoCommit(false);
+            try {
+                confirmRows(conn, rows);
+                insertRows(conn, rows);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            int coalesced = 0;
+            for (RowWrite w : rows) {
+                if (w.existing != null) {
+                    w.existing.confirmations += w.reports.size();
+                    coalesced += w.reports.size();
+                } else {
+                    deduper.inserted(w.atmKey, new ReportDeduper.Row(w.reportId, w.first.cashStatus, w.first.depositStatus,
+                            w.first.passbookStatus, w.first.receivedAt.getTime(), w.reports.size()));
+                    coalesced += w.reports.size() - 1;
+                }
+            }
+            coalescedTotal.add(coalesced);
+            batches.incrementAndGet();
+            written.addAndGet(batch.size());
+            writtenTotal.add(batch.size());
+            flushNanosTotal.addAndGet(System.nanoTime() - start);
+            flushTime.recordNanos(System.nanoTime() - start);
+            for (PendingReport r : batch) r.future.complete(null);
+            notifyListeners(rows);
+        } catch (SQLException e) {
+            failed.addAndGet(batch.size());
+            Log.error("reports.write_failed", e, "batchSize", batch.size());
+            for (PendingReport r : batch) r.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Group the batch into the rows it touches: consecutive identical reports for an ATM
+     * share one row, which is either the ATM's latest row within the dedup window (to be
+     * confirmed) or a new row (to be inserted).
+     */
+    private List<RowWrite> plan(List<PendingReport> batch) {
+        long now = System.currentTimeMillis();
+        List<RowWrite> rows = new ArrayList<>(batch.size());
+        Map<String, RowWrite> latestInBatch = new HashMap<>();
+        for (PendingReport r : batch) {
+            String key = AtmService.locationKey(r.name, r.address);
+            RowWrite w = latestInBatch.get(key);
+            if (w != null && w.first.sameStatus(r)) {
+                w.reports.add(r);
+                continue;
+            }
+            ReportDeduper.Row existing = null;
+            if (w == null) {
+                ReportDeduper.Row row = deduper.latest(key, now);
+                if (row != null && row.sameStatus(r.cashStatus, r.depositStatus, r.passbookStatus)) existing = row;
+            }
+            w = new RowWrite(key, r, existing);
+            rows.add(w);
+            latestInBatch.put(key, w);
+        }
+        return rows;
+    }
+
+    private void confirmRows(Connection conn, List<RowWrite> rows) throws SQLException {
+        List<RowWrite> confirms = new ArrayList<>();
+        for (RowWrite w : rows) if (w.existing != null) confirms.add(w);
+        if (confirms.isEmpty()) return;
+        int[] counts;
+        try (PreparedStatement ps = conn.prepareStatement(CONFIRM_SQL)) {
+            for (RowWrite w : confirms) {
+                ps.setInt(1, w.reports.size());
+                ps.setTimestamp(2, w.last().receivedAt);
+                ps.setLong(3, w.existing.reportId);
+                // TIMESTAMP columns round to whole seconds, so allow for that.
+                ps.setTimestamp(4, new Timestamp(w.existing.insertedAtMillis - 1000));
+                ps.addBatch();
+            }
+            counts = ps.executeBatch();
+        }
+        try (PreparedStatement ps = conn.prepareStatement(CONFIRM_LATEST_SQL)) {
+            for (int i = 0; i < confirms.size(); i++) {
+                RowWrite w = confirms.get(i);
+                if (counts[i] == 0) {
+                    // The row is gone (archived or deleted): write these reports as a new row.
+                    w.existing = null;
+                    continue;
+                }
+                ps.setInt(1, w.reports.size());
+                ps.setBytes(2, AtmCatalog.locationHash(w.first.name, w.first.address));
+                ps.setLong(3, w.existing.reportId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private void insertRows(Connection conn, List<RowWrite> rows) throws SQLException {
+        List<RowWrite> inserts = new ArrayList<>();
+        for (RowWrite w : rows) if (w.existing == null) inserts.add(w);
+        if (inserts.isEmpty()) return;
+        try (PreparedStatement ps = conn.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+            for (RowWrite w : inserts) {
+                PendingReport r = w.first;
+                ps.setString(1, r.name);
+                ps.setString(2, r.address);
+                ps.setInt(3, r.cashStatus.getCode());
+                ps.setInt(4, r.depositStatus.getCode());
+                ps.setInt(5, r.passbookStatus.getCode());
+                ps.setTimestamp(6, r.receivedAt);
+                ps.setInt(7, w.reports.size());
+                ps.setTimestamp(8, w.reports.size() > 1 ? w.last().receivedAt : null);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            try (ResultSet keys = ps.getGeneratedKeys()) {
+                for (int i = 0; i < inserts.size() && keys.next(); i++) inserts.get(i).reportId = keys.getLong(1);
+            }
+        }
+        try (PreparedStatement ps = conn.prepareStatement(UPSERT_LATEST_SQL)) {
+            for (RowWrite w : inserts) {
+                PendingReport r = w.first;
+                ps.setBytes(1, AtmCatalog.locationHash(r.name, r.address));
+                ps.setString(2, r.name);
+                ps.setString(3, r.address);
+                ps.setInt(4, r.cashStatus.getCode());
+                ps.setInt(5, r.depositStatus.getCode());
+                ps.setInt(6, r.passbookStatus.getCode());
+                ps.setLong(7, w.reportId);
+                ps.setTimestamp(8, r.receivedAt);
+                ps.setInt(9, w.reports.size());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private void notifyListeners(List<RowWrite> rows) {
+        if (listeners.isEmpty()) return;
+        List<AtmLocation> written = new ArrayList<>(rows.size());
+        for (RowWrite w : rows) {
+            PendingReport r = w.first;
+            AtmReport report = w.existing != null
+                    ? new AtmReport(r.cashStatus, r.depositStatus, r.passbookStatus, new Timestamp(w.existing.insertedAtMillis), w.existing.confirmations)
+                    : new AtmReport(r.cashStatus, r.depositStatus, r.passbookStatus, r.receivedAt, w.reports.size());
+            written.add(new AtmLocation(r.name, r.address, report));
+        }
+        for (Consumer<List<AtmLocation>> listener : listeners) {
+            try {
+                listener.accept(written);
+            } catch (RuntimeException e) {
+                Log.error("reports.listener_failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting reports, flush everything already queued and wait up to
+     * timeoutMillis for the writer thread to finish. Returns false if it is still writing.
+     */
+    public boolean close(long timeoutMillis) {
+        running = false;
+        try {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !writer.isAlive();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        long b = batches.get();
+        m.put("queued", queue.size());
+        m.put("capacity", queue.size() + queue.remainingCapacity());
+        m.put("batchSize", batchSize);
+        m.put("flushIntervalMillis", flushIntervalMillis);
+        m.put("accepted", accepted.get());
+        m.put("rejected", rejected.get());
+        m.put("written", written.get());
+        m.put("failed", failed.get());
+        m.put("coalesced", coalescedTotal.sum());
+        m.put("dedupTrackedAtms", deduper.size());
+        m.put("batches", b);
+        m.put("avgBatchSize", b == 0 ? 0.0 : (double) written.get() / b);
+        m.put("avgFlushMillis", b == 0 ? 0.0 : flushNanosTotal.get() / 1_000_000.0 / b);
+        return m;
+    }
+
+    private static final class PendingReport {
+        final String name;
+        final String address;
+        final AtmStatus cashStatus;
+        final AtmStatus depositStatus;
+        final AtmStatus passbookStatus;
+        final Timestamp receivedAt = new Timestamp(System.currentTimeMillis());
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingReport(String name, String address, AtmStatus cashStatus, AtmStatus depositStatus, AtmStatus passbookStatus) {
+            this.name = name;
+            this.address = address;
+            this.cashStatus = cashStatus;
+            this.depositStatus = depositStatus;
+            this.passbookStatus = passbookStatus;
+        }
+
+        boolean sameStatus(PendingReport o) {
+            return cashStatus == o.cashStatus && depositStatus == o.depositStatus && passbookStatus == o.passbookStatus;
+        }
+    }
+
+    /**
+     * The reports of one batch that go into one ATM_reports row: a new row, or existing
+     * (the ATM's latest row, confirmed by them).
+     */
+    private static final class RowWrite {
+        final String atmKey;
+        final PendingReport first;
+        final List<PendingReport> reports = new ArrayList<>(1);
+        ReportDeduper.Row existing;
+        long reportId;
+
+        RowWrite(String atmKey, PendingReport first, ReportDeduper.Row existing) {
+            this.atmKey = atmKey;
+            this.first = first;
+            this.existing = existing;
+            reports.add(first);
+        }
+
+        PendingReport last() {
+            return reports.get(reports.size() - 1);
+        }
+    }
+
+    /**
+     * The ingest queue is full (or the writer is shutting down).
+     */
+    public static class QueueFullException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        public QueueFullException() {
+            super("Report queue is full, try again shortly");
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-route HTTP metrics: request counts by status class, latency, DB time and requests
+ * in flight. MainApi calls begin() from a before-filter and end() from an afterAfter
+ * filter; requests that went async are finished when their AsyncContext completes.
+ *
+ * Only registered routes get their own series; everything else (static files, 404s) is
+ * counted under route="other" so label cardinality stays bounded.
+ */
+public final class RequestMetrics {
+
+    private static final String ATTRIBUTE = RequestMetrics.class.getName();
+    private static final Map<String, RequestMetrics> routes = new ConcurrentHashMap<>();
+    private static final RequestMetrics other = new RequestMetrics("other");
+
+    private final LatencyHistogram latency;
+    private final LatencyHistogram dbTime;
+    private final LongAdder[] byStatusClass = new LongAdder[6];
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private RequestMetrics(String route) {
+        String labels = "route=\"" + route + "\"";
+        latency = Metrics.timer("http_request_duration_seconds", "Time from request start to response completion.", labels);
+        dbTime = Metrics.timer("http_request_db_seconds", "Time synchronous requests spent holding DB connections.", labels);
+        for (int i = 1; i < byStatusClass.length; i++) {
+            byStatusClass[i] = Metrics.counter("http_requests_total", "Completed HTTP requests.", labels + ",status=\"" + i + "xx\"");
+        }
+        Metrics.gauge("http_requests_in_flight", "HTTP requests currently being served.", labels, inFlight::get);
+    }
+
+    public static void register(String... paths) {
+        for (String path : paths) routes.computeIfAbsent(path, RequestMetrics::new);
+    }
+
+    /**
+     * Requests currently being served, over all routes.
+     */
+    public static int inFlight() {
+        int n = other.inFlight.get();
+        for (RequestMetrics m : routes.values()) n += m.inFlight.get();
+        return n;
+    }
+
+    public static void begin(HttpServletRequest req) {
+        RequestMetrics m = routes.getOrDefault(req.getPathInfo() != null ? req.getPathInfo() : req.getRequestURI(), other);
+        m.inFlight.incrementAndGet();
+        req.setAttribute(ATTRIBUTE, new Timing(m, System.nanoTime(), Metrics.threadDbNanos()));
+    }
+
+    public static void end(HttpServletRequest req, HttpServletResponse res) {
+        Object a = req.getAttribute(ATTRIBUTE);
+        if (!(a instanceof Timing)) return;
+        Timing t = (Timing) a;
+        req.removeAttribute(ATTRIBUTE);
+        if (!req.isAsyncStarted()) {
+            t.metrics.dbTime.recordNanos(Metrics.threadDbNanos() - t.dbNanosAtStart);
+            t.finish(res.getStatus());
+            return;
+        }
+        // The response is written later on another thread; DB time there is not attributed.
+        req.getAsyncContext().addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                t.finish(((HttpServletResponse) event.getSuppliedResponse()).getStatus());
+            }
+            @Override public void onTimeout(AsyncEvent event) {}
+            @Override public void onError(AsyncEvent event) {}
+            @Override public void onStartAsync(AsyncEvent event) {}
+        });
+    }
+
+    private static final class Timing {
+        final RequestMetrics metrics;
+        final long startNanos;
+        final long dbNanosAtStart;
+
+        Timing(RequestMetrics metrics, long startNanos, long dbNanosAtStart) {
+            this.metrics = metrics;
+            this.startNanos = startNanos;
+            this.dbNanosAtStart = dbNanosAtStart;
+        }
+
+        void finish(int status) {
+            metrics.latency.recordNanos(System.nanoTime() - startNanos);
+            int cls = status / 100;
+            metrics.byStatusClass[cls >= 1 && cls <= 5 ? cls : 5].increment();
+            metrics.inFlight.decrementAndGet();
+        }
+    }
+}
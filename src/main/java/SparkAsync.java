@@ -0,0 +1,91 @@
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+import spark.embeddedserver.jetty.JettyServerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+
+/**
+ * Lets Spark routes answer from servlet async mode with a status of their own.
+ *
+ * When a route returns, Spark writes its return value and closes the response unless
+ * the response is already committed; an async route would have to commit a 200 before
+ * returning. install() puts a handler in front of Spark's that hands Spark a response
+ * reporting itself committed once the route has called startAsync(). Spark then leaves
+ * it alone, and whoever completes the AsyncContext sets the status and headers and
+ * writes the body through ctx.getResponse().
+ *
+ * Must be called before the first route or filter is mapped, since that starts Jetty.
+ */
+public final class SparkAsync {
+
+    private SparkAsync() {
+    }
+
+    public static void install() {
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory(new JettyServerFactory() {
+            // Same thread pool defaults as Spark's own JettyServer.
+            @Override
+            public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+                if (maxThreads <= 0) return new AsyncServer(new QueuedThreadPool());
+                return new AsyncServer(new QueuedThreadPool(maxThreads, minThreads > 0 ? minThreads : 8,
+                        threadTimeoutMillis > 0 ? threadTimeoutMillis : 60000));
+            }
+
+            @Override
+            public Server create(org.eclipse.jetty.util.thread.ThreadPool threadPool) {
+                return new AsyncServer(threadPool);
+            }
+        }));
+    }
+
+    /**
+     * Server that wraps whatever handler Spark installs in an AsyncAwareHandler.
+     */
+    private static final class AsyncServer extends Server {
+        AsyncServer(org.eclipse.jetty.util.thread.ThreadPool threadPool) {
+            super(threadPool);
+        }
+
+        @Override
+        public void setHandler(Handler handler) {
+            if (handler == null || handler instanceof AsyncAwareHandler) {
+                super.setHandler(handler);
+                return;
+            }
+            AsyncAwareHandler wrapper = new AsyncAwareHandler();
+            wrapper.setHandler(handler);
+            super.setHandler(wrapper);
+        }
+    }
+
+    private static final class AsyncAwareHandler extends HandlerWrapper {
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+                throws IOException, ServletException {
+            super.handle(target, baseRequest, request, new AsyncAwareResponse(request, response));
+        }
+    }
+
+    private static final class AsyncAwareResponse extends HttpServletResponseWrapper {
+        private final HttpServletRequest request;
+
+        AsyncAwareResponse(HttpServletRequest request, HttpServletResponse response) {
+            super(response);
+            this.request = request;
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return super.isCommitted() || request.isAsyncStarted();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process pub/sub of ATM status changes for long-lived client streams.
+ *
+ * A subscription covers a set of ATMs (by AtmGeoIndex.hashKey) and owns a bounded
+ * buffer. publish() only appends to the buffers of matching subscriptions, so the
+ * report writer thread that calls it never waits on a client socket; a small pool of
+ * delivery threads drains each buffer into its Sink. A subscriber whose buffer is full
+ * is too slow to keep up and is dropped: its sink is closed with reason "slow_consumer"
+ * and the client is expected to reconnect (and resync from the initial snapshot).
+ * Delivery threads are shared by every subscriber, so sinks must not block on the
+ * client: one stalled socket would stop delivery to everyone else.
+ *
+ * Every heartbeatSeconds each sink gets a heartbeat, which keeps proxies from timing
+ * out idle streams and finds clients that went away.
+ */
+public class StatusHub {
+
+    /**
+     * Where a subscription's events go. The hub's own calls for one subscription never
+     * overlap, but AtmService.subscribeStatus() sends the initial snapshot from the
+     * subscribing thread, so implementations must be thread-safe. Calls must not block
+     * on the client; a sink that cannot hand an event off returns false and is dropped.
+     */
+    public interface Sink {
+        /** Deliver a changed ATM; false if the client is gone or not keeping up. */
+        boolean send(AtmLocation atm);
+
+        /** Keep-alive; false if the client is gone or not keeping up. */
+        boolean heartbeat();
+
+        /** The subscription ended for reason; release the client. */
+        void close(String reason);
+    }
+
+    private final int bufferSize;
+    private final int maxSubscribers;
+    private final Map<String, Set<Subscription>> byAtm = new ConcurrentHashMap<>();
+    private final Set<Subscription> all = ConcurrentHashMap.newKeySet();
+    private final ExecutorService delivery;
+    private final ScheduledExecutorService heartbeats;
+    private volatile boolean stopped;
+
+    private final LongAdder published = Metrics.counter("status_stream_events_total", "ATM status changes offered to subscribers.", "outcome=\"queued\"");
+    private final LongAdder delivered = Metrics.counter("status_stream_events_total", "ATM status changes offered to subscribers.", "outcome=\"delivered\"");
+    private final LongAdder droppedSubscribers = Metrics.counter("status_stream_dropped_total", "Subscribers disconnected for falling behind.", "");
+
+    public StatusHub(int bufferSize, int maxSubscribers, int deliveryThreads, long heartbeatSeconds) {
+        this.bufferSize = Math.max(1, bufferSize);
+        this.maxSubscribers = maxSubscribers;
+        AtomicInteger n = new AtomicInteger();
+        this.delivery = Executors.newFixedThreadPool(Math.max(1, deliveryThreads), r -> {
+            Thread t = new Thread(r, "status-push-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "status-push-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeats.scheduleWithFixedDelay(this::heartbeatAll, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        Metrics.gauge("status_stream_subscribers", "Open ATM status streams.", "", all::size);
+    }
+
+    /**
+     * Build a hub from STATUS_STREAM_BUFFER (default 64 events per subscriber),
+     * STATUS_STREAM_MAX_SUBSCRIBERS (1000), STATUS_STREAM_THREADS (2) and
+     * STATUS_STREAM_HEARTBEAT_SECONDS (15).
+     */
+    public static StatusHub fromConfig() {
+        return new StatusHub(
+                AppConfig.getInt("STATUS_STREAM_BUFFER", 64),
+                AppConfig.getInt("STATUS_STREAM_MAX_SUBSCRIBERS", 1000),
+                AppConfig.getInt("STATUS_STREAM_THREADS", 2),
+                AppConfig.getLong("STATUS_STREAM_HEARTBEAT_SECONDS", 15));
+    }
+
+    /**
+     * Subscribe sink to changes of the given ATMs. Returns null if the hub is full or
+     * stopped.
+     */
+    public Subscription subscribe(Collection<String> atmKeys, Sink sink) {
+        if (stopped || all.size() >= maxSubscribers) return null;
+        Subscription s = new Subscription(Set.copyOf(atmKeys), sink);
+        all.add(s);
+        for (String key : s.keys) {
+            byAtm.compute(key, (k, subs) -> {
+                if (subs == null) subs = ConcurrentHashMap.newKeySet();
+                subs.add(s);
+                return subs;
+            });
+        }
+        return s;
+    }
+
+    /**
+     * Fan written reports out to the subscriptions watching their ATMs. Never blocks.
+     */
+    public void publish(List<AtmLocation> changed) {
+        if (all.isEmpty()) return;
+        for (AtmLocation atm : changed) {
+            Set<Subscription> subs = byAtm.get(AtmGeoIndex.hashKey(atm.getName(), atm.getAddress()));
+            if (subs == null) continue;
+            for (Subscription s : subs) s.offer(atm);
+        }
+    }
+
+    private void heartbeatAll() {
+        for (Subscription s : all) s.heartbeat();
+    }
+
+    public void stop() {
+        stopped = true;
+        heartbeats.shutdownNow();
+        for (Subscription s : all) s.cancel("shutdown");
+        delivery.shutdown();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("subscribers", all.size());
+        m.put("maxSubscribers", maxSubscribers);
+        m.put("watchedAtms", byAtm.size());
+        m.put("bufferSize", bufferSize);
+        m.put("queued", published.sum());
+        m.put("delivered", delivered.sum());
+        m.put("droppedSlowSubscribers", droppedSubscribers.sum());
+        return m;
+    }
+
+    /**
+     * One client stream. Its buffer is drained by at most one delivery task at a time.
+     */
+    public final class Subscription {
+        private final Set<String> keys;
+        private final Sink sink;
+        private final ArrayDeque<AtmLocation> buffer = new ArrayDeque<>();
+        private boolean draining;
+        private boolean heartbeatDue;
+        private String closedReason;
+
+        private Subscription(Set<String> keys, Sink sink) {
+            this.keys = keys;
+            this.sink = sink;
+        }
+
+        public int size() {
+            return keys.size();
+        }
+
+        private void offer(AtmLocation atm) {
+            synchronized (this) {
+                if (closedReason != null) return;
+                if (buffer.size() >= bufferSize) {
+                    droppedSubscribers.increment();
+                    closedReason = "slow_consumer";
+                    buffer.clear();
+                } else {
+                    buffer.addLast(atm);
+                    published.increment();
+                }
+                if (!scheduleDrain()) return;
+            }
+            delivery.execute(this::drain);
+        }
+
+        private void heartbeat() {
+            synchronized (this) {
+                if (closedReason != null) return;
+                heartbeatDue = true;
+                if (!scheduleDrain()) return;
+            }
+            delivery.execute(this::drain);
+        }
+
+        /**
+         * End the subscription from outside (client disconnected, shutdown).
+         */
+        public void cancel(String reason) {
+            synchronized (this) {
+                if (closedReason == null) closedReason = reason;
+                buffer.clear();
+                if (!scheduleDrain()) return;
+            }
+            delivery.execute(this::drain);
+        }
+
+        // Caller holds the lock; true if the caller must submit drain().
+        private boolean scheduleDrain() {
+            if (draining) return false;
+            draining = true;
+            return true;
+        }
+
+        private void drain() {
+            while (true) {
+                AtmLocation next;
+                boolean beat;
+                String reason;
+                synchronized (this) {
+                    reason = closedReason;
+                    next = reason == null ? buffer.pollFirst() : null;
+                    beat = reason == null && next == null && heartbeatDue;
+                    heartbeatDue = false;
+                    if (reason == null && next == null && !beat) {
+                        draining = false;
+                        return;
+                    }
+                }
+                if (reason != null) {
+                    unsubscribe();
+                    sink.close(reason);
+                    return; // draining stays true: nothing is scheduled again
+                }
+                boolean alive;
+                try {
+                    alive = next != null ? sink.send(next) : sink.heartbeat();
+                } catch (RuntimeException e) {
+                    alive = false;
+                }
+                if (next != null && alive) delivered.increment();
+                if (!alive) {
+                    synchronized (this) {
+                        if (closedReason == null) closedReason = "client_gone";
+                    }
+                }
+            }
+        }
+
+        private void unsubscribe() {
+            if (!all.remove(this)) return;
+            for (String key : keys) {
+                byAtm.computeIfPresent(key, (k, subs) -> {
+                    subs.remove(this);
+                    return subs.isEmpty() ? null : subs;
+                });
+            }
+        }
+    }
+}
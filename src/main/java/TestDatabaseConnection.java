@@ -8,7 +8,7 @@ import java.sql.Statement;
  * executes a small verification query against the `atm_db` database.
  */
 public class TestDatabaseConnection {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws SQLException {
         System.out.println("Starting Database connection test...");
 
         Connection conn = DatabaseConnector.getConnection();
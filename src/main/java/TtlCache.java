@@ -0,0 +1,244 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded in-process cache whose entries expire a fixed time after they were loaded.
+ *
+ * - Size bound: least-recently-used entries are evicted once maxSize is exceeded.
+ * - TTL: entries older than their time-to-live (ttlMillis by default) are treated as missing.
+ * - Single-flight: concurrent misses for the same key share one loader call; the
+ *   other callers wait for its result instead of hitting the upstream themselves.
+ *
+ * A loader returning null is not cached, so transient upstream failures are retried
+ * on the next request. If something put() a value for the key while its loader was
+ * running (e.g. a short-lived fallback), the loader's result does not overwrite it.
+ *
+ * Expired entries stay in the map until evicted or replaced, so getStale() can still
+ * serve them when the upstream is down. refreshAsync() reloads an entry before it
+ * expires, sharing the single-flight slot with regular misses.
+ */
+public class TtlCache<K, V> {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Map<K, Entry<V>> entries;
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    public TtlCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > TtlCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return the cached value for key, loading it with loader on a miss. Concurrent
+     * misses for the same key wait for a single loader invocation.
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        return await(getAsync(key, k -> CompletableFuture.completedFuture(loader.apply(k))));
+    }
+
+    /**
+     * Asynchronous variant of get(). A hit returns an already completed future, so
+     * callers can cheaply check isDone() before deciding to go asynchronous. Concurrent
+     * misses for the same key share the future of the first loader call.
+     */
+    public CompletableFuture<V> getAsync(K key, Function<? super K, ? extends CompletableFuture<V>> loader) {
+        V cached = getIfPresent(key);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        misses.incrementAndGet();
+
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            collapsed.incrementAndGet();
+            return existing.copy();
+        }
+
+        // Another caller may have finished loading between our miss and winning the slot.
+        V value = peek(key);
+        if (value != null) {
+            inFlight.remove(key, mine);
+            mine.complete(value);
+            return mine.copy();
+        }
+        return load(key, mine, loader);
+    }
+
+    /**
+     * Reload key with loader whether or not it is cached, e.g. shortly before it expires.
+     * The current value keeps being served meanwhile; a null result leaves it in place.
+     * If a load for key is already running, its future is returned instead of starting
+     * another one.
+     */
+    public CompletableFuture<V> refreshAsync(K key, Function<? super K, ? extends CompletableFuture<V>> loader) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) return existing.copy();
+        refreshes.incrementAndGet();
+        return load(key, mine, loader);
+    }
+
+    private CompletableFuture<V> load(K key, CompletableFuture<V> mine, Function<? super K, ? extends CompletableFuture<V>> loader) {
+        loads.incrementAndGet();
+        long loadStarted = System.currentTimeMillis();
+        CompletableFuture<V> loading;
+        try {
+            loading = loader.apply(key);
+        } catch (RuntimeException e) {
+            loading = CompletableFuture.failedFuture(e);
+        }
+        loading.whenComplete((v, err) -> {
+            if (err == null && v != null) putUnlessNewer(key, v, loadStarted);
+            inFlight.remove(key, mine);
+            if (err != null) {
+                mine.completeExceptionally(err);
+            } else {
+                mine.complete(v);
+            }
+        });
+        return mine.copy();
+    }
+
+    /**
+     * Return the cached value if present and not expired, counting a hit.
+     */
+    public V getIfPresent(K key) {
+        V v = peek(key);
+        if (v != null) hits.incrementAndGet();
+        return v;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, ttlMillis);
+    }
+
+    /**
+     * Cache value for key with its own time-to-live instead of the default.
+     */
+    public void put(K key, V value, long ttlMillis) {
+        synchronized (entries) {
+            entries.put(key, new Entry<>(value, System.currentTimeMillis(), ttlMillis));
+        }
+    }
+
+    private void putUnlessNewer(K key, V value, long since) {
+        synchronized (entries) {
+            Entry<V> e = entries.get(key);
+            if (e != null && e.loadedAt >= since) return;
+            entries.put(key, new Entry<>(value, System.currentTimeMillis(), ttlMillis));
+        }
+    }
+
+    /**
+     * The value for key even if it has expired, or null if it was never cached or has
+     * been evicted. Does not count as a hit.
+     */
+    public V getStale(K key) {
+        synchronized (entries) {
+            Entry<V> e = entries.get(key);
+            return e != null ? e.value : null;
+        }
+    }
+
+    /**
+     * Milliseconds until the entry for key expires (negative once it has), or
+     * Long.MIN_VALUE if key is not cached at all.
+     */
+    public long remainingMillis(K key) {
+        synchronized (entries) {
+            Entry<V> e = entries.get(key);
+            if (e == null) return Long.MIN_VALUE;
+            return e.loadedAt + e.ttlMillis - System.currentTimeMillis();
+        }
+    }
+
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private V peek(K key) {
+        synchronized (entries) {
+            Entry<V> e = entries.get(key);
+            if (e == null) return null;
+            if (System.currentTimeMillis() - e.loadedAt > e.ttlMillis) {
+                if (!e.expired) {
+                    e.expired = true;
+                    expirations.incrementAndGet();
+                }
+                return null;
+            }
+            return e.value;
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Counters since startup plus the current size.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("size", size());
+        m.put("maxSize", maxSize);
+        m.put("ttlSeconds", ttlMillis / 1000);
+        m.put("hits", hits.get());
+        m.put("misses", misses.get());
+        m.put("loads", loads.get());
+        m.put("collapsed", collapsed.get());
+        m.put("evictions", evictions.get());
+        m.put("expirations", expirations.get());
+        m.put("refreshes", refreshes.get());
+        return m;
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long loadedAt;
+        final long ttlMillis;
+        boolean expired;
+
+        Entry(V value, long loadedAt, long ttlMillis) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+}
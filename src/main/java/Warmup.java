@@ -0,0 +1,217 @@
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Startup phase run by MainApi after the HTTP listener is up and before /ready reports
+ * ready, so the first real requests do not pay for cold pools, caches and code paths:
+ *
+ * - database: open the primary and replica pools (MYSQL_POOL_MIN connections each),
+ *   retrying for up to WARMUP_DB_WAIT_SECONDS while the DB is not reachable yet
+ * - indexes: wait up to WARMUP_INDEX_WAIT_SECONDS for the first geo and search index load
+ * - caches: load the ATM lists of the WARMUP_PINCODES most recently catalogued pincodes
+ *   into the list cache
+ * - upstream: open a connection (TCP and TLS) to the Gemini host, see GeminiClient.preconnect()
+ * - requests: send WARMUP_REQUESTS requests for the cached pincodes, ATM searches and
+ *   nearby lookups to the service itself over loopback from WARMUP_CONCURRENCY threads.
+ *   They go through Jetty, the filters, the report reads (preparing the hot statements
+ *   on several pooled connections) and JSON writing, so those are loaded and compiled.
+ *   They only hit cached pincodes, never Gemini.
+ *
+ * Every step is best effort: a failure is logged and the service becomes ready anyway.
+ * Warm-up requests carry a per-process token (see isOwnRequest()) so the rate limiter
+ * lets them through. They are counted in the request metrics like any other request, and
+ * as lookups by the prefetcher, which then keeps the primed pincodes cached.
+ */
+public class Warmup {
+
+    static final String HEADER = "X-Warmup-Token";
+
+    private final AtmService atmService;
+    private final GeminiClient gemini;
+    private final int port;
+    private final String token = UUID.randomUUID().toString();
+
+    private final long dbWaitMillis = AppConfig.getLong("WARMUP_DB_WAIT_SECONDS", 30) * 1000L;
+    private final long indexWaitMillis = AppConfig.getLong("WARMUP_INDEX_WAIT_SECONDS", 30) * 1000L;
+    private final int maxPincodes = AppConfig.getInt("WARMUP_PINCODES", 50);
+    private final boolean preconnect = AppConfig.getBoolean("WARMUP_PRECONNECT", true);
+    private final int requests = AppConfig.getInt("WARMUP_REQUESTS", 200);
+    private final int concurrency = Math.max(1, AppConfig.getInt("WARMUP_CONCURRENCY", 4));
+
+    private final Map<String, Object> steps = new LinkedHashMap<>();
+    private final AtomicInteger requestsSent = new AtomicInteger();
+    private final AtomicInteger requestsFailed = new AtomicInteger();
+    private final AtomicLong tookMillis = new AtomicLong();
+
+    public Warmup(AtmService atmService, GeminiClient gemini, int port) {
+        this.atmService = atmService;
+        this.gemini = gemini;
+        this.port = port;
+    }
+
+    /**
+     * True if headerValue (of HEADER) is this warm-up's token.
+     */
+    public boolean isOwnRequest(String headerValue) {
+        return token.equals(headerValue);
+    }
+
+    /**
+     * Run all steps in order on the calling thread.
+     */
+    public void run() {
+        long start = System.currentTimeMillis();
+        step("database", this::openPools);
+        step("indexes", () -> atmService.awaitIndexes(indexWaitMillis) ? "loaded" : "timed out");
+        Map<String, List<AtmLocation>> primed = new LinkedHashMap<>();
+        step("caches", () -> {
+            primed.putAll(atmService.primeCaches(maxPincodes));
+            return primed.size() + " pincodes";
+        });
+        if (preconnect && gemini.hasApiKey()) step("upstream", () -> "HTTP " + gemini.preconnect());
+        step("requests", () -> sendRequests(primed));
+        tookMillis.set(System.currentTimeMillis() - start);
+        Log.info("startup.warmed_up", "millis", tookMillis.get(), "requests", requestsSent.get(), "failed", requestsFailed.get());
+    }
+
+    private String openPools() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + dbWaitMillis;
+        while (!canConnect(true)) {
+            if (System.currentTimeMillis() >= deadline) return "primary unreachable";
+            Thread.sleep(1000);
+        }
+        return canConnect(false) ? "open" : "replicas unreachable";
+    }
+
+    private static boolean canConnect(boolean primary) {
+        try (Connection conn = primary ? DatabaseConnector.getConnection() : DatabaseConnector.getReadConnection()) {
+            return conn != null;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private String sendRequests(Map<String, List<AtmLocation>> primed) throws InterruptedException {
+        List<String> paths = warmupPaths(primed);
+        // Shares the dispatcher and connection pool of HttpClients.shared() rather than starting
+        // another set of OkHttp threads for one burst of local requests. Its calls are kept out
+        // of the outbound (Gemini) timing metrics.
+        OkHttpClient http = HttpClients.shared().newBuilder()
+                .callTimeout(10, TimeUnit.SECONDS)
+                .eventListener(EventListener.NONE)
+                .build();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "warmup");
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < concurrency; i++) {
+            pool.execute(() -> {
+                for (int n = next.getAndIncrement(); n < requests; n = next.getAndIncrement()) {
+                    send(http, paths.get(n % paths.size()));
+                }
+            });
+        }
+        pool.shutdown();
+        boolean done = pool.awaitTermination(2, TimeUnit.MINUTES);
+        pool.shutdownNow();
+        // No evictAll(): the pool is shared and holds the connections preconnect() opened to
+        // Gemini. send() closes its connections, so none to ourselves are left in it.
+        return requestsSent.get() + " sent, " + requestsFailed.get() + " failed" + (done ? "" : ", timed out");
+    }
+
+    private static List<String> warmupPaths(Map<String, List<AtmLocation>> primed) {
+        List<String> paths = new ArrayList<>();
+        for (Map.Entry<String, List<AtmLocation>> e : primed.entrySet()) {
+            String pincode = e.getKey();
+            List<AtmLocation> atms = e.getValue();
+            paths.add("/api/atms?pincode=" + encode(pincode));
+            if (atms.isEmpty()) continue;
+            AtmLocation atm = atms.get(0);
+            String name = atm.getName();
+            paths.add("/api/atms/search?q=" + encode(name.substring(0, Math.min(name.length(), 8))) + "&pincode=" + encode(pincode));
+            if (atm.getLatitude() != null && atm.getLongitude() != null) {
+                paths.add("/api/atms?lat=" + atm.getLatitude() + "&lon=" + atm.getLongitude());
+            }
+        }
+        if (paths.isEmpty()) {
+            // Nothing catalogued yet: still exercise the server, JSON and index paths.
+            paths.add("/api/atms/search?q=atm");
+            paths.add("/api/atms?lat=13.08&lon=80.27");
+        }
+        return paths;
+    }
+
+    private void send(OkHttpClient http, String path) {
+        Request request = new Request.Builder()
+                .url("http://127.0.0.1:" + port + path)
+                .header(HEADER, token)
+                // Not pooled: idle connections to ourselves would push Gemini ones out of the
+                // shared pool's HTTP_POOL_MAX_IDLE slots.
+                .header("Connection", "close")
+                .build();
+        requestsSent.incrementAndGet();
+        try (Response response = http.newCall(request).execute()) {
+            response.body().bytes();
+            if (!response.isSuccessful()) requestsFailed.incrementAndGet();
+        } catch (IOException e) {
+            requestsFailed.incrementAndGet();
+        }
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+    private void step(String name, Step step) {
+        long start = System.currentTimeMillis();
+        Object result;
+        try {
+            result = step.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = "interrupted";
+        } catch (RuntimeException e) {
+            Log.error("startup.warmup_step_failed", e, "step", name);
+            result = "failed: " + e.getMessage();
+        }
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("result", result);
+        m.put("millis", System.currentTimeMillis() - start);
+        synchronized (steps) {
+            steps.put(name, m);
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        synchronized (steps) {
+            m.put("steps", new LinkedHashMap<>(steps));
+        }
+        m.put("tookMillis", tookMillis.get());
+        return m;
+    }
+
+    private interface Step {
+        Object run() throws InterruptedException;
+    }
+}